@@ -0,0 +1,105 @@
+// Object allocator of Kite programs, called by the code of 'new' and 'delete'
+// (see IrBuilder). Linked into every program by RuntimeLibrary.
+//
+// Each thread allocates from its own arena: a bump pointer in a 1 MB chunk
+// mapped with mmap, so the common 'new' is a few instructions with no lock
+// and no call into libc. Sizes are rounded to 16 bytes; a deleted object goes
+// to the free list of its size class (16, 32... 256 bytes) and the next 'new'
+// of that class takes it first. 'delete' passes the size of the object, so
+// blocks need no header. Larger objects get their own mapping.
+//
+// The memory returned is zeroed: a new chunk comes zeroed from the kernel,
+// a reused block is cleared.
+
+#include <stddef.h>
+#include <stdint.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <unistd.h>
+
+#define GRANULE 16
+#define SIZE_CLASSES 16 // 16, 32... 256 bytes
+#define MAX_SMALL (GRANULE * SIZE_CLASSES)
+#define CHUNK_SIZE (1 << 20)
+
+typedef struct FreeBlock {
+	struct FreeBlock *next;
+} FreeBlock;
+
+typedef struct {
+	char *top;
+	char *end;
+	FreeBlock *free[SIZE_CLASSES];
+} Arena;
+
+static __thread Arena arena;
+
+static void *map(size_t size) {
+	void *p = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+	if (p == MAP_FAILED) {
+		static const char message[] = "kite: out of memory\n";
+		write(2, message, sizeof message - 1);
+		_exit(137);
+	}
+	return p;
+}
+
+static size_t rounded(size_t size) {
+	return size == 0 ? GRANULE : (size + GRANULE - 1) & ~(size_t) (GRANULE - 1);
+}
+
+// the slow path: the rest of the current chunk goes to the free lists, in
+// blocks of the largest classes that fit, and a new chunk is mapped
+static __attribute__((noinline)) void *refill(size_t size) {
+	while (arena.end - arena.top >= GRANULE) {
+		size_t left = arena.end - arena.top;
+		size_t block = left < MAX_SMALL ? left & ~(size_t) (GRANULE - 1) : MAX_SMALL;
+		FreeBlock *b = (FreeBlock *) arena.top;
+		b->next = arena.free[block / GRANULE - 1];
+		arena.free[block / GRANULE - 1] = b;
+		arena.top += block;
+	}
+	arena.top = map(CHUNK_SIZE);
+	arena.end = arena.top + CHUNK_SIZE;
+	void *p = arena.top;
+	arena.top += size;
+	return p;
+}
+
+void *__kite_alloc(int64_t size) {
+	size_t n = rounded(size);
+	if (n > MAX_SMALL) return map(n);
+
+	FreeBlock **list = &arena.free[n / GRANULE - 1];
+	FreeBlock *b = *list;
+	if (b != NULL) {
+		*list = b->next;
+		memset(b, 0, n);
+		return b;
+	}
+	if ((size_t) (arena.end - arena.top) < n) return refill(n);
+	void *p = arena.top;
+	arena.top += n;
+	return p;
+}
+
+void __kite_free(void *p, int64_t size) {
+	if (p == NULL) return;
+	size_t n = rounded(size);
+	if (n > MAX_SMALL) {
+		munmap(p, n);
+		return;
+	}
+	FreeBlock *b = p;
+	b->next = arena.free[n / GRANULE - 1];
+	arena.free[n / GRANULE - 1] = b;
+}
+
+// The bytes left before the next allocation a @CallMethodWhenAlloc method
+// samples. The method takes its address once on entry and counts its 'new's
+// down in place; it starts at 0, so the first allocation is sampled.
+static __thread int64_t countdown;
+
+int64_t *__kite_alloc_countdown(void) {
+	return &countdown;
+}
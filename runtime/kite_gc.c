@@ -0,0 +1,451 @@
+// Garbage collector of the programs whose main is @WithGarbageCollector:
+// their 'new' and 'delete' call __kite_gc_alloc and __kite_gc_free instead of
+// the functions of kite_alloc.c (see IrBuilder). Linked into every program by
+// RuntimeLibrary.
+//
+// A precise, non-moving mark-sweep collector, driven by maps the compiler emits:
+// - 'new' passes the pointer map of its class (bit i: word i of the object
+//   holds a reference, see ClassLayout.pointers), kept in the object header
+// - every call has a stack map in the kite_gcmaps section (see CodeGen): its
+//   return address and the %rbp offsets of the words of the caller's frame
+//   that hold a reference during the call
+// A collection follows the saved %rbp and return addresses from the frame of
+// the allocation up to main's (recorded by __kite_gc_start), marks what the
+// maps reach, and sweeps the blocks left unmarked to the free lists. It runs
+// once the bytes allocated since the last one reach the larger of 4 MB and
+// the bytes it found alive.
+//
+// Small objects come from 1 MB chunks aligned on their size, each with blocks
+// of a single size class, so the block of an address in a chunk is one
+// division away: a pointer into an object (an inline object) keeps it alive
+// too. A larger object gets its own mapping. A word that does not point into
+// an allocated object (a stale stack word) is ignored.
+//
+// The program reads the statistics with the @Extern methods of a class 'gc':
+// collect(), collections(), heapSize(), liveBytes(), pauseNanos() and
+// maxPauseNanos(). The heap belongs to the main thread.
+
+#include <stddef.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <time.h>
+#include <unistd.h>
+
+#define GRANULE 16
+#define SIZE_CLASSES 16 // objects of 16, 32... 256 bytes
+#define MAX_SMALL (GRANULE * SIZE_CLASSES)
+#define CHUNK_SIZE (1 << 20)
+#define MIN_THRESHOLD (4 << 20)
+
+#define FREE 0
+#define USED 1
+#define MARKED 2
+
+typedef struct {
+	uint64_t map;   // bit i: word i of the object is a reference
+	uint32_t size;  // bytes of the object
+	uint32_t state; // FREE, or USED and maybe MARKED
+} Header;
+
+typedef struct Chunk {
+	struct Chunk *next;
+	char *top;      // end of the blocks handed out so far
+	uint32_t block; // header + object
+	uint32_t sizeClass;
+	uint64_t pad;
+} Chunk;
+
+typedef struct Large {
+	struct Large *next;
+	size_t bytes; // of the mapping
+	Header header;
+} Large;
+
+// a record of kite_gcmaps, padded to 8 bytes
+typedef struct {
+	uint64_t ret;
+	uint32_t count;
+	int32_t offsets[];
+} StackMap;
+
+extern const char __start_kite_gcmaps[] __attribute__((weak));
+extern const char __stop_kite_gcmaps[] __attribute__((weak));
+
+#define TOMBSTONE ((Chunk *) 1)
+
+static struct {
+	char *bottom; // %rbp of main
+	Chunk *chunks;
+	Chunk *current[SIZE_CLASSES];
+	Header *free[SIZE_CLASSES];
+	Large *large;
+	uintptr_t largeLow, largeHigh;
+
+	// the chunks, by address (open addressing)
+	Chunk **table;
+	size_t tableSize, tableUsed;
+
+	// stack maps by return address (open addressing)
+	const StackMap **maps;
+	size_t mapsSize;
+
+	Header **stack;
+	size_t stackSize, stackCount;
+
+	size_t allocated; // since the last collection
+	size_t threshold;
+	int64_t collections, mapped, live, pauseNanos, maxPauseNanos;
+} heap = { .threshold = MIN_THRESHOLD };
+
+static __attribute__((noreturn)) void outOfMemory(void) {
+	static const char message[] = "kite: out of memory\n";
+	write(2, message, sizeof message - 1);
+	_exit(137);
+}
+
+static void *map(size_t size) {
+	void *p = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+	if (p == MAP_FAILED) outOfMemory();
+	return p;
+}
+
+static void *grow(void *array, size_t bytes) {
+	void *p = realloc(array, bytes);
+	if (p == NULL) outOfMemory();
+	return p;
+}
+
+static size_t rounded(size_t size) {
+	return size == 0 ? GRANULE : (size + GRANULE - 1) & ~(size_t) (GRANULE - 1);
+}
+
+static size_t chunkHash(const Chunk *c, size_t size) {
+	return ((uintptr_t) c / CHUNK_SIZE) & (size - 1);
+}
+
+static int isChunk(const Chunk *c) {
+	if (heap.tableSize == 0) return 0;
+	for (size_t i = chunkHash(c, heap.tableSize);; i = (i + 1) & (heap.tableSize - 1)) {
+		if (heap.table[i] == c) return 1;
+		if (heap.table[i] == NULL) return 0;
+	}
+}
+
+static void addChunk(Chunk *c) {
+	if (2 * (heap.tableUsed + 1) > heap.tableSize) {
+		// rehash, dropping the tombstones
+		Chunk **old = heap.table;
+		size_t oldSize = heap.tableSize;
+		heap.tableSize = oldSize == 0 ? 64 : oldSize * 2;
+		heap.table = calloc(heap.tableSize, sizeof(Chunk *));
+		if (heap.table == NULL) outOfMemory();
+		heap.tableUsed = 0;
+		for (size_t i = 0; i < oldSize; i++) {
+			if (old[i] != NULL && old[i] != TOMBSTONE) addChunk(old[i]);
+		}
+		free(old);
+	}
+	size_t i = chunkHash(c, heap.tableSize);
+	while (heap.table[i] != NULL && heap.table[i] != TOMBSTONE)
+		i = (i + 1) & (heap.tableSize - 1);
+	if (heap.table[i] == NULL) heap.tableUsed++;
+	heap.table[i] = c;
+}
+
+static void removeChunk(Chunk *c) {
+	size_t i = chunkHash(c, heap.tableSize);
+	while (heap.table[i] != c)
+		i = (i + 1) & (heap.tableSize - 1);
+	heap.table[i] = TOMBSTONE;
+}
+
+static Chunk *newChunk(int sizeClass) {
+	// twice the size, to cut an aligned chunk out of it
+	char *p = map(2 * CHUNK_SIZE);
+	char *aligned = (char *) (((uintptr_t) p + CHUNK_SIZE - 1) & ~(uintptr_t) (CHUNK_SIZE - 1));
+	if (aligned > p) munmap(p, aligned - p);
+	if (aligned + CHUNK_SIZE < p + 2 * CHUNK_SIZE) munmap(aligned + CHUNK_SIZE, p + 2 * CHUNK_SIZE - (aligned + CHUNK_SIZE));
+
+	Chunk *c = (Chunk *) aligned;
+	c->block = sizeof(Header) + GRANULE * (sizeClass + 1);
+	c->sizeClass = sizeClass;
+	c->top = aligned + sizeof(Chunk);
+	c->next = heap.chunks;
+	heap.chunks = c;
+	heap.current[sizeClass] = c;
+	heap.mapped += CHUNK_SIZE;
+	addChunk(c);
+	return c;
+}
+
+// free blocks are linked through their first word
+static Header **nextFree(Header *h) {
+	return (Header **) (h + 1);
+}
+
+static Header *allocateSmall(size_t n) {
+	int sizeClass = n / GRANULE - 1;
+	Header *h = heap.free[sizeClass];
+	if (h != NULL) {
+		heap.free[sizeClass] = *nextFree(h);
+		memset(h + 1, 0, n);
+		return h;
+	}
+	Chunk *c = heap.current[sizeClass];
+	if (c == NULL || c->top + c->block > (char *) c + CHUNK_SIZE) c = newChunk(sizeClass);
+	h = (Header *) c->top;
+	c->top += c->block;
+	return h;
+}
+
+static Header *allocateLarge(size_t n) {
+	size_t bytes = sizeof(Large) + n;
+	Large *l = map(bytes);
+	l->bytes = bytes;
+	l->next = heap.large;
+	heap.large = l;
+	heap.mapped += bytes;
+	if (heap.largeLow == 0 || (uintptr_t) l < heap.largeLow) heap.largeLow = (uintptr_t) l;
+	if ((uintptr_t) l + bytes > heap.largeHigh) heap.largeHigh = (uintptr_t) l + bytes;
+	return &l->header;
+}
+
+static void freeLarge(Large *l) {
+	Large **link = &heap.large;
+	while (*link != l)
+		link = &(*link)->next;
+	*link = l->next;
+	heap.mapped -= l->bytes;
+	munmap(l, l->bytes);
+}
+
+// the header of the allocated object 'p' points into, NULL if none
+static Header *find(uintptr_t p) {
+	Chunk *c = (Chunk *) (p & ~(uintptr_t) (CHUNK_SIZE - 1));
+	if (isChunk(c)) {
+		char *first = (char *) c + sizeof(Chunk);
+		if ((char *) p < first || (char *) p >= c->top) return NULL;
+		Header *h = (Header *) (first + ((char *) p - first) / c->block * c->block);
+		return h->state != FREE && p >= (uintptr_t) (h + 1) ? h : NULL;
+	}
+	if (p < heap.largeLow || p >= heap.largeHigh) return NULL;
+	for (Large *l = heap.large; l != NULL; l = l->next) {
+		uintptr_t start = (uintptr_t) (l + 1);
+		if (p >= start && p < start + l->header.size) return &l->header;
+	}
+	return NULL;
+}
+
+static void mark(uintptr_t p) {
+	Header *h = find(p);
+	if (h == NULL || (h->state & MARKED)) return;
+	h->state |= MARKED;
+	if (h->map == 0) return;
+	if (heap.stackCount == heap.stackSize) {
+		heap.stackSize = heap.stackSize == 0 ? 1024 : heap.stackSize * 2;
+		heap.stack = grow(heap.stack, heap.stackSize * sizeof(Header *));
+	}
+	heap.stack[heap.stackCount++] = h;
+}
+
+// marks the objects reachable from the marked ones
+static void markReachable(void) {
+	while (heap.stackCount > 0) {
+		Header *h = heap.stack[--heap.stackCount];
+		uint64_t *words = (uint64_t *) (h + 1);
+		for (uint64_t m = h->map; m != 0; m &= m - 1)
+			mark(words[__builtin_ctzll(m)]);
+	}
+}
+
+static size_t mapHash(uint64_t ret, size_t size) {
+	return (ret * 0x9E3779B97F4A7C15ull >> 32) & (size - 1);
+}
+
+// the table of the stack maps of the program, built once
+static void loadStackMaps(void) {
+	size_t count = 0;
+	const char *p = __start_kite_gcmaps;
+	for (; p < __stop_kite_gcmaps; p += (12 + 4 * ((const StackMap *) p)->count + 7) & ~7)
+		count++;
+	heap.mapsSize = 16;
+	while (heap.mapsSize < 2 * count)
+		heap.mapsSize *= 2;
+	heap.maps = calloc(heap.mapsSize, sizeof(StackMap *));
+	if (heap.maps == NULL) outOfMemory();
+	for (p = __start_kite_gcmaps; p < __stop_kite_gcmaps; p += (12 + 4 * ((const StackMap *) p)->count + 7) & ~7) {
+		const StackMap *m = (const StackMap *) p;
+		size_t i = mapHash(m->ret, heap.mapsSize);
+		while (heap.maps[i] != NULL)
+			i = (i + 1) & (heap.mapsSize - 1);
+		heap.maps[i] = m;
+	}
+}
+
+static const StackMap *stackMap(uint64_t ret) {
+	for (size_t i = mapHash(ret, heap.mapsSize);; i = (i + 1) & (heap.mapsSize - 1)) {
+		if (heap.maps[i] == NULL || heap.maps[i]->ret == ret) return heap.maps[i];
+	}
+}
+
+// 'fp' is the frame of a runtime entry point: it holds the %rbp of its
+// caller and the return address, and so on up to main
+static void markStack(char **fp) {
+	for (;;) {
+		char *caller = fp[0];
+		if (caller <= (char *) fp || caller > heap.bottom) break; // not a frame of the program
+		const StackMap *m = stackMap((uint64_t) fp[1]);
+		if (m != NULL) {
+			for (uint32_t i = 0; i < m->count; i++)
+				mark(*(uintptr_t *) (caller + m->offsets[i]));
+		}
+		if (caller == heap.bottom) break;
+		fp = (char **) caller;
+	}
+	markReachable();
+}
+
+static void sweep(void) {
+	size_t live = 0;
+	memset(heap.free, 0, sizeof heap.free);
+
+	Chunk **link = &heap.chunks;
+	while (*link != NULL) {
+		Chunk *c = *link;
+		size_t used = 0;
+		Header *freeList = heap.free[c->sizeClass];
+		for (char *b = (char *) c + sizeof(Chunk); b < c->top; b += c->block) {
+			Header *h = (Header *) b;
+			if (h->state & MARKED) {
+				h->state = USED;
+				used += c->block;
+			} else {
+				h->state = FREE;
+				*nextFree(h) = freeList;
+				freeList = h;
+			}
+		}
+		if (used == 0 && heap.current[c->sizeClass] != c) {
+			// nothing alive: the chunk goes back to the system
+			*link = c->next;
+			removeChunk(c);
+			heap.mapped -= CHUNK_SIZE;
+			munmap(c, CHUNK_SIZE);
+			continue;
+		}
+		heap.free[c->sizeClass] = freeList;
+		live += used;
+		link = &c->next;
+	}
+
+	for (Large *l = heap.large, *next; l != NULL; l = next) {
+		next = l->next;
+		if (l->header.state & MARKED) {
+			l->header.state = USED;
+			live += l->bytes;
+		} else {
+			freeLarge(l);
+		}
+	}
+	heap.live = live;
+}
+
+static int64_t nanos(void) {
+	struct timespec t;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return (int64_t) t.tv_sec * 1000000000 + t.tv_nsec;
+}
+
+static void collect(char **fp) {
+	int64_t start = nanos();
+	if (heap.maps == NULL) loadStackMaps();
+	markStack(fp);
+	sweep();
+	heap.allocated = 0;
+	heap.threshold = heap.live > MIN_THRESHOLD ? heap.live : MIN_THRESHOLD;
+	heap.collections++;
+
+	int64_t pause = nanos() - start;
+	heap.pauseNanos += pause;
+	if (pause > heap.maxPauseNanos) heap.maxPauseNanos = pause;
+}
+
+// entry points: the stubs pass the frame they push, where markStack starts
+__asm__(".text\n"
+		".globl __kite_gc_alloc\n"
+		"__kite_gc_alloc:\n" // (size, map)
+		"	pushq %rbp\n"
+		"	movq %rsp, %rbp\n"
+		"	movq %rbp, %rdx\n"
+		"	call kite_gc_allocate\n"
+		"	popq %rbp\n"
+		"	ret\n"
+		".globl gc_collect\n"
+		"gc_collect:\n"
+		"	pushq %rbp\n"
+		"	movq %rsp, %rbp\n"
+		"	movq %rbp, %rdi\n"
+		"	call kite_gc_collect\n"
+		"	popq %rbp\n"
+		"	ret\n"
+		".globl __kite_gc_start\n"
+		"__kite_gc_start:\n" // first call of main: %rbp is its frame
+		"	movq %rbp, %rdi\n"
+		"	jmp kite_gc_start\n");
+
+__attribute__((used, visibility("hidden"))) void *kite_gc_allocate(int64_t size, uint64_t map, char **fp) {
+	size_t n = rounded(size);
+	if (heap.bottom != NULL && heap.allocated >= heap.threshold) collect(fp);
+	heap.allocated += sizeof(Header) + n;
+
+	Header *h = n > MAX_SMALL ? allocateLarge(n) : allocateSmall(n);
+	h->map = map;
+	h->size = n;
+	h->state = USED;
+	return h + 1;
+}
+
+__attribute__((used, visibility("hidden"))) void kite_gc_collect(char **fp) {
+	if (heap.bottom != NULL) collect(fp);
+}
+
+__attribute__((used, visibility("hidden"))) void kite_gc_start(char *bottom) {
+	heap.bottom = bottom;
+}
+
+void __kite_gc_free(void *p, int64_t size) {
+	if (p == NULL) return;
+	Header *h = (Header *) p - 1;
+	if (h->size > MAX_SMALL) {
+		freeLarge((Large *) ((char *) p - sizeof(Large)));
+		return;
+	}
+	int sizeClass = h->size / GRANULE - 1;
+	h->state = FREE;
+	*nextFree(h) = heap.free[sizeClass];
+	heap.free[sizeClass] = h;
+}
+
+// the @Extern methods of class gc, 'self' is the gc object
+
+int64_t gc_collections(void *self) {
+	return heap.collections;
+}
+
+int64_t gc_heapSize(void *self) {
+	return heap.mapped;
+}
+
+int64_t gc_liveBytes(void *self) {
+	return heap.live;
+}
+
+int64_t gc_pauseNanos(void *self) {
+	return heap.pauseNanos;
+}
+
+int64_t gc_maxPauseNanos(void *self) {
+	return heap.maxPauseNanos;
+}
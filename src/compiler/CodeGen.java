@@ -1,286 +1,562 @@
 package compiler;
 
-import java.io.*;
+import static compiler.asm.Mnemonic.*;
+import static compiler.asm.Operand.*;
+
 import java.util.*;
 
+import compiler.asm.*;
 import compiler.ast.core.*;
-import compiler.ast.expr.*;
 import compiler.ast.stmt.*;
-import compiler.ast.var_def.*;
-import compiler.util.*;
-
+import compiler.ir.*;
+import compiler.opt.*;
+import compiler.regalloc.*;
+
+// x86-64 backend: lowers each function to SSA (IrBuilder), assigns registers
+// with the linear scan allocator and emits the instructions of every function
+// in an InstrBuffer (for the Assembler, or as AT&T text with writeAtt).
+//
+// In a garbage collected program, every call gets a stack map: the %rbp
+// offsets of the frame words that hold references while it runs (the PTRs
+// the allocator kept in their spill slot, the references of the inline
+// objects, cleared in the prologue). See runtime/kite_gc.c.
 class CodeGen {
-	private final PrintWriter out;
-	private final Deque<Map<String, Integer>> scopes = new ArrayDeque<>();
-	private int stackOffset = 0;
-	private int labelCounter = 0;
-	private String currentReturnType = null;
-
-	public CodeGen() {
-		this.out = new PrintWriter(System.out);
+	private static final Operand[] ARG_REGS = { RDI, RSI, RDX, RCX, R8, R9 };
+
+	// one move of a parallel copy; 'address' means dst = &src (lea)
+	private static class Move {
+		final Operand dst;
+		Operand src;
+		final boolean address;
+
+		Move(Operand dst, Operand src, boolean address) {
+			this.dst = dst;
+			this.src = src;
+			this.address = address;
+		}
 	}
 
-	public CodeGen(PrintWriter out) {
-		this.out = out;
+	private final List<InstrBuffer> functions = new ArrayList<>();
+	private Inliner inliner;
+	// where each virtual register lives: a register (ex: %rbx) or a stack slot (ex: -16(%rbp))
+	private final Map<Instr, Operand> locations = new HashMap<>();
+	// comparisons only used by the BR right after them: emitted as cmp + jcc by the BR
+	private final Set<Instr> fused = new HashSet<>();
+	// garbage collected program: the stack map of each call
+	private boolean gc;
+	private final Map<Instr, int[]> stackMaps = new HashMap<>();
+	private List<Operand> savedRegs = List.of();
+	private InstrBuffer code;
+	private IrFunction fn;
+	private int frameSize;
+	private boolean hasFrame;
+
+	// the functions emitted so far, in order
+	public List<InstrBuffer> functions() {
+		return functions;
 	}
 
-	private void declareVar(String name) {
-		stackOffset -= 8;
-		scopes.peek().put(name, stackOffset);
+	// memory operand for 'base + offset', using %rcx when the base is not in a register
+	private Operand address(Value base, int offset) {
+		if (base instanceof Instr instr && instr.op == Opcode.SLOT) {
+			return mem(RBP.reg, instr.slot.offset + offset);
+		}
+		Operand loc = operand(base);
+		if (!isRegister(loc)) {
+			load(base, RCX);
+			loc = RCX;
+		}
+		return mem(loc.reg, offset);
 	}
 
-	private void enterScope() {
-		scopes.push(new LinkedHashMap<>());
+	// back to the registers and %rsp of the function entry
+	private void emitEpilogue() {
+		for (int i = 0; i < savedRegs.size(); i++) {
+			code.add(MOV, mem(RBP.reg, -8 * (i + 1)), savedRegs.get(i));
+		}
+		if (frameSize > 0) code.add(MOV, RBP, RSP);
+		if (hasFrame) code.add(POP, RBP);
 	}
 
-	private void exitScope() {
-		scopes.pop();
+	// x / d or x % d for x in %rcx without an idiv, returns the register holding the result
+	private Operand divideByConstant(long d, boolean mod) {
+		long abs = Math.abs(d);
+		if (abs == 1) {
+			if (mod) {
+				code.add(MOV, imm(0), RAX);
+			} else {
+				code.add(MOV, RCX, RAX);
+				if (d < 0) code.add(NEG, RAX);
+			}
+			return RAX;
+		}
+
+		if (Long.bitCount(abs) == 1) {
+			// a shift rounds down: add 2^k - 1 first when x is negative, to round toward zero
+			int k = Long.numberOfTrailingZeros(abs);
+			code.add(MOV, RCX, RAX);
+			code.add(SAR, imm(63), RAX);
+			code.add(SHR, imm(64 - k), RAX);
+			code.add(ADD, RCX, RAX);
+			if (mod) {
+				code.add(AND, imm(-abs), RAX);
+				code.add(SUB, RAX, RCX);
+				return RCX;
+			}
+			code.add(SAR, imm(k), RAX);
+			if (d < 0) code.add(NEG, RAX);
+			return RAX;
+		}
+
+		MagicDivisor magic = MagicDivisor.of(d);
+		code.add(MOV, imm(magic.multiplier()), RAX);
+		code.add(IMUL, RCX); // %rdx = high half of %rax * %rcx
+		if (d > 0 && magic.multiplier() < 0) code.add(ADD, RCX, RDX);
+		if (d < 0 && magic.multiplier() > 0) code.add(SUB, RCX, RDX);
+		if (magic.shift() > 0) code.add(SAR, imm(magic.shift()), RDX);
+		code.add(MOV, RDX, RAX);
+		code.add(SHR, imm(63), RAX);
+		code.add(ADD, RDX, RAX);
+		if (!mod) return RAX;
+		code.add(IMUL, imm(d), RAX);
+		code.add(SUB, RAX, RCX);
+		return RCX;
 	}
 
-	private void genLValueAddr(Node target) {
-		if (target instanceof IdentNode id) {
-			int offset = lookupVar(id.varDecl.name);
-			out.printf("    mov %d(%%rbp), %%rdi\n", offset);
+	private void argumentMoves(Instr call) {
+		if (call.args.size() > ARG_REGS.length) throw new RuntimeException("Too many arguments");
+		List<Move> moves = new ArrayList<>();
+		for (int i = 0; i < call.args.size(); i++)
+			moves.add(move(ARG_REGS[i], call.args.get(i)));
+		parallelMove(moves);
+	}
 
-		} else if (target instanceof FieldAccessNode fa) {
-			genLValueAddr(fa.target);
-			int offset = Util.getFieldOffset(fa);
-			out.printf("    add $%d, %%rdi\n", offset);
+	private void emitInstr(Instr instr, BasicBlock next) {
+		Operand dst = locations.get(instr);
 
-		} else {
-			throw new RuntimeException("Invalid lvalue");
+		switch (instr.op) {
+		case PARAM, SLOT, PHI -> {
+		}
+		case ADD, SUB, MUL, SHL -> {
+			if (dst == null) return;
+			Operand target = isRegister(dst) ? dst : RAX;
+			load(instr.args.get(0), target);
+			Value b = instr.args.get(1);
+			switch (instr.op) {
+			case ADD -> code.add(ADD, source(b, RCX), target);
+			case SUB -> code.add(SUB, source(b, RCX), target);
+			case MUL -> code.add(IMUL, source(b, RCX), target);
+			default -> {
+				if (b instanceof Const c) {
+					code.add(SHL, imm(c.value), target);
+				} else {
+					load(b, RCX);
+					code.add(SHL, CL, target);
+				}
+			}
+			}
+			store(target, dst);
+		}
+		case DIV, MOD -> {
+			boolean mod = instr.op == Opcode.MOD;
+			if (instr.args.get(1) instanceof Const c && c.value != 0) {
+				if (dst == null) return;
+				load(instr.args.get(0), RCX);
+				store(divideByConstant(c.value, mod), dst);
+				return;
+			}
+			// unused, it is still done for the trap of a zero divisor (DCE keeps it for that)
+			load(instr.args.get(0), RAX);
+			load(instr.args.get(1), RCX);
+			code.add(CQO);
+			code.add(IDIV, RCX);
+			if (dst != null) store(mod ? RDX : RAX, dst);
+		}
+		case EQ, NE, LT, GT, LE, GE -> {
+			if (dst == null || fused.contains(instr)) return;
+			compare(instr.args.get(0), instr.args.get(1));
+			code.add(SETCC, condition(instr.op), 0, AL);
+			code.add(MOVZX, AL, RAX);
+			store(RAX, dst);
+		}
+		case SEXT, ZEXT -> {
+			if (dst == null) return;
+			Operand target = isRegister(dst) ? dst : RAX;
+			load(instr.args.get(0), target);
+			code.add(instr.op == Opcode.SEXT ? MOVSX : MOVZX, target.withSize(instr.size), target);
+			store(target, dst);
+		}
+		case LOAD -> {
+			if (dst == null) return;
+			Operand target = isRegister(dst) ? dst : RAX;
+			Operand addr = address(instr.args.get(0), instr.offset);
+			if (instr.size == 8) {
+				code.add(MOV, addr, target);
+			} else {
+				code.add(instr.unsigned ? MOVZX : MOVSX, -1, instr.size, addr, target);
+			}
+			store(target, dst);
+		}
+		case STORE -> {
+			// the low 'size' bytes: an immediate truncated to them, or the narrow register
+			Operand addr = address(instr.args.get(0), instr.offset);
+			Value value = instr.args.get(1);
+			if (value instanceof Const c) {
+				int bits = 64 - instr.size * 8;
+				code.add(MOV, -1, instr.size, imm(c.value << bits >> bits), addr);
+			} else {
+				Operand src = operand(value);
+				if (src == null || !isRegister(src)) {
+					load(value, RAX);
+					src = RAX;
+				}
+				code.add(MOV, src.withSize(instr.size), addr);
+			}
+		}
+		case CALL -> {
+			argumentMoves(instr);
+			int call = code.add(Mnemonic.CALL, symbol(instr.callee));
+			if (gc) code.stackMap(call, stackMaps.get(instr));
+			if (dst != null) store(RAX, dst);
+		}
+		case TAIL -> {
+			// the arguments are in registers, the callee's ret goes back to our caller
+			argumentMoves(instr);
+			emitEpilogue();
+			code.jump(-1, instr.callee);
+		}
+		case RET -> {
+			if (!instr.args.isEmpty()) load(instr.args.get(0), RAX);
+			emitEpilogue();
+			code.add(Mnemonic.RET);
+		}
+		case JMP -> {
+			BasicBlock target = instr.targets.get(0);
+			emitPhiMoves(instr.block, target);
+			if (target != next) code.jump(-1, label(target));
+		}
+		case BR -> {
+			BasicBlock then = instr.targets.get(0);
+			BasicBlock otherwise = instr.targets.get(1);
+			Value cond = instr.args.get(0);
+
+			if (cond instanceof Const c) {
+				BasicBlock target = c.value != 0 ? then : otherwise;
+				if (target != next) code.jump(-1, label(target));
+				return;
+			}
+
+			int cc;
+			if (fused.contains(cond)) {
+				Instr compare = (Instr) cond;
+				compare(compare.args.get(0), compare.args.get(1));
+				cc = condition(compare.op);
+			} else {
+				Operand loc = operand(cond);
+				code.add(CMP, -1, isRegister(loc) ? 0 : 8, imm(0), loc);
+				cc = NE;
+			}
+			if (then == next) {
+				code.jump(cc ^ 1, label(otherwise)); // x86 conditions come in pairs: cc ^ 1 is the opposite
+			} else {
+				code.jump(cc, label(then));
+				if (otherwise != next) code.jump(-1, label(otherwise));
+			}
+		}
+		default -> throw new RuntimeException("Unsupported instruction: " + instr.op);
 		}
 	}
 
-	private Integer lookupVar(String name) {
-		for (Map<String, Integer> scope : scopes) {
-			if (scope.containsKey(name)) return scope.get(name);
+	// cmp b, a: the flags of a - b, reading a where it lives when it can
+	private void compare(Value a, Value b) {
+		Operand left = operand(a);
+		Operand right = source(b, RCX);
+		if (left == null || left.isImm() || (left.isMem() && right.isMem())) {
+			load(a, RAX);
+			left = RAX;
 		}
-		throw new RuntimeException("Undefined variable: " + name);
+		code.add(CMP, -1, isRegister(left) ? 0 : 8, right, left);
 	}
 
-	void emit(FuncDefNode fn) {
-		this.currentReturnType = fn.returnType;
+	// values of the PHIs of 'target' coming from 'block'
+	private void emitPhiMoves(BasicBlock block, BasicBlock target) {
+		int predIndex = target.preds.indexOf(block);
+		List<Move> moves = new ArrayList<>();
+		for (Instr phi : target.phis()) {
+			Operand dst = locations.get(phi);
+			if (dst != null) moves.add(move(dst, phi.args.get(predIndex)));
+		}
+		parallelMove(moves);
+	}
 
-		out.printf(".globl %s\n", fn.name);
-		out.printf("%s:\n", fn.name);
-		out.println("    push %rbp");
-		out.println("    mov %rsp, %rbp");
-		out.println("    sub $256, %rsp");
+	private static int condition(Opcode op) {
+		return switch (op) {
+		case EQ -> E;
+		case NE -> NE;
+		case LT -> L;
+		case GT -> G;
+		case LE -> LE;
+		case GE -> GE;
+		default -> throw new RuntimeException("Not a comparison: " + op);
+		};
+	}
 
-		stackOffset = 0;
-		enterScope();
+	private static boolean isRegister(Operand loc) {
+		return loc != null && loc.isReg();
+	}
 
-		String[] argRegs = { "%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9" };
-		int i = 0;
-		for (VarDeclNode param : fn.params.values()) {
-			declareVar(param.name);
-			out.printf("    mov %s, %d(%%rbp)\n", argRegs[i], lookupVar(param.name));
-			i++;
+	private static boolean isLeaf(IrFunction ir) {
+		for (BasicBlock block : ir.blocks) {
+			for (Instr instr : block.instrs) {
+				if (instr.op == Opcode.CALL) return false;
+			}
 		}
+		return true;
+	}
 
-		List<Node> stmts = fn.body.statements;
-		for (Node stmt : stmts)
-			gen(stmt);
+	private String label(BasicBlock block) {
+		return ".L" + fn.name + "_" + block.id;
+	}
 
-		if (stmts.isEmpty() || !(stmts.get(stmts.size() - 1) instanceof ReturnNode)) {
-			out.println("    mov %rbp, %rsp");
-			out.println("    pop %rbp");
-			out.println("    ret");
+	// puts any value in register 'reg'
+	private void load(Value v, Operand reg) {
+		if (v instanceof Instr instr && instr.op == Opcode.SLOT) {
+			code.add(LEA, mem(RBP.reg, instr.slot.offset), reg);
+			return;
 		}
+		Operand src = operand(v);
+		if (!src.equals(reg)) code.add(MOV, src, reg);
+	}
 
-		exitScope();
+	private Move move(Operand dst, Value src) {
+		if (src instanceof Instr instr && instr.op == Opcode.SLOT) {
+			return new Move(dst, mem(RBP.reg, instr.slot.offset), true);
+		}
+		return new Move(dst, operand(src), false);
 	}
 
-	public void gen(Node node) {
-		if (node instanceof ProgramNode prog) {
-			for (ClassDefNode clazz : prog.types.values()) {
-				gen(clazz);
-			}
-			emit(prog.main);
-		} else if (node instanceof ClassDefNode clazz) {
-			for (FuncDefNode method : clazz.methods.values()) {
-				gen(method);
-			}
-		} else if (node instanceof FuncDefNode func) {
-			emit(func);
-		} else if (node instanceof BlockNode block) {
-			for (Node stmt : block.statements) {
-				gen(stmt);
-			}
-		} else if (node instanceof NumNode num) {
-			out.printf("    mov $%d, %%rax\n", num.value);
-
-		} else if (node instanceof BinOpNode bin) {
-			gen(bin.right);
-			out.println("    push %rax");
-			gen(bin.left);
-			out.println("    pop %rdi");
-
-			switch (bin.op) {
-			case PLUS -> out.println("    add %rdi, %rax");
-			case MINUS -> out.println("    sub %rdi, %rax");
-			case MUL -> out.println("    imul %rdi, %rax");
-			case DIV -> {
-				out.println("    mov %rax, %rcx"); // b → rcx
-				out.println("    mov %rdi, %rax"); // a → rax
-				out.println("    cqo");
-				out.println("    idiv %rcx"); // a / b
-			}
-			case EQ, LT, GT, LE, GE, NEQ -> {
-				out.println("    cmp %rdi, %rax");
-				switch (bin.op) {
-				case EQ -> out.println("    sete %al");
-				case LT -> out.println("    setl %al");
-				case GT -> out.println("    setg %al");
-				case LE -> out.println("    setle %al");
-				case GE -> out.println("    setge %al");
-				case NEQ -> out.println("    setne %al");
+	// immediate ($5), register or stack slot of a value; null for SLOT addresses
+	private Operand operand(Value v) {
+		if (v instanceof Const c) return imm(c.value);
+		Instr instr = (Instr) v;
+		if (instr.op == Opcode.SLOT) return null;
+		Operand loc = locations.get(instr);
+		if (loc == null) throw new RuntimeException("Value without location: " + instr.toLongString());
+		return loc;
+	}
+
+	// Assigns offsets to the inline objects, below 'base' (bytes already used
+	// under %rbp). An object is placed after every object of its enclosing
+	// blocks, so sibling blocks (then/else, consecutive loops) overlap.
+	// Returns the bytes used by the objects.
+	private static int layoutSlots(List<FrameSlot> slots, int base) {
+		Map<BlockNode, Integer> scopeSize = new HashMap<>();
+		for (FrameSlot slot : slots)
+			scopeSize.merge(slot.scope, slotSize(slot), Integer::sum);
+
+		Map<BlockNode, Integer> used = new HashMap<>();
+		int size = 0;
+		for (FrameSlot slot : slots) {
+			int start = 0;
+			for (BlockNode b = slot.scope == null ? null : slot.scope.parentBlock; b != null; b = b.parentBlock)
+				start += scopeSize.getOrDefault(b, 0);
+			if (slot.scope != null) start += scopeSize.getOrDefault(null, 0);
+
+			int offset = start + used.getOrDefault(slot.scope, 0);
+			used.merge(slot.scope, slotSize(slot), Integer::sum);
+			slot.offset = -(base + offset + slotSize(slot));
+			size = Math.max(size, offset + slotSize(slot));
+		}
+		return size;
+	}
+
+	// compact objects may be smaller than 8 bytes or not a multiple of 8: every slot stays 8-byte aligned
+	private static int slotSize(FrameSlot slot) {
+		return (slot.size + 7) & ~7;
+	}
+
+	// Emits moves that happen "at the same time": a destination is only written
+	// once no pending move still reads it. Cycles (ex: swap %rsi, %rdi) are broken
+	// by saving one destination in %rax.
+	private void parallelMove(List<Move> moves) {
+		List<Move> pending = new ArrayList<>();
+		for (Move m : moves) {
+			if (m.address || !m.dst.equals(m.src)) pending.add(m);
+		}
+
+		while (!pending.isEmpty()) {
+			boolean progress = false;
+			Iterator<Move> iter = pending.iterator();
+			while (iter.hasNext()) {
+				Move m = iter.next();
+				if (isRead(pending, m)) continue;
+
+				if (m.address) {
+					Operand target = isRegister(m.dst) ? m.dst : RCX;
+					code.add(LEA, m.src, target);
+					store(target, m.dst);
+				} else if (isRegister(m.dst) || isRegister(m.src)) {
+					code.add(MOV, m.src, m.dst);
+				} else if (m.src.isImm()) {
+					code.add(MOV, -1, 8, m.src, m.dst);
+				} else {
+					code.add(MOV, m.src, RCX);
+					code.add(MOV, RCX, m.dst);
 				}
-				out.println("    movzb %al, %rax");
-			}
-			case AND -> {
-				int label = labelCounter++;
-				gen(bin.left);
-				out.println("    cmp $0, %rax");
-				out.printf("    je .Lfalse%d\n", label);
-				gen(bin.right);
-				out.println("    cmp $0, %rax");
-				out.printf("    je .Lfalse%d\n", label);
-				out.println("    mov $1, %rax");
-				out.printf("    jmp .Lend%d\n", label);
-				out.printf(".Lfalse%d:\n", label);
-				out.println("    mov $0, %rax");
-				out.printf(".Lend%d:\n", label);
-			}
-			case OR -> {
-				int label = labelCounter++;
-				gen(bin.left);
-				out.println("    cmp $0, %rax");
-				out.printf("    jne .Ltrue%d\n", label);
-				gen(bin.right);
-				out.println("    cmp $0, %rax");
-				out.printf("    jne .Ltrue%d\n", label);
-				out.println("    mov $0, %rax");
-				out.printf("    jmp .Lend%d\n", label);
-				out.printf(".Ltrue%d:\n", label);
-				out.println("    mov $1, %rax");
-				out.printf(".Lend%d:\n", label);
-			}
-			default -> throw new RuntimeException("Unsupported operator");
+				iter.remove();
+				progress = true;
 			}
 
-		} else if (node instanceof UnaryOpNode uop) {
-			gen(uop.expr);
-			switch (uop.op) {
-			case NOT -> {
-				out.println("    cmp $0, %rax");
-				out.println("    sete %al");
-				out.println("    movzb %al, %rax");
-			}
-			default -> throw new RuntimeException("Unsupported unary operator: " + uop.op);
+			if (!progress) {
+				Move m = pending.get(0);
+				code.add(MOV, m.dst, RAX);
+				for (Move other : pending) {
+					if (!other.address && other.src.equals(m.dst)) other.src = RAX;
+				}
 			}
+		}
+	}
 
-		} else if (node instanceof VarDeclNode decl) {
-			ClassDefNode clazz = decl.typeClass;
-
-			if (clazz != null) {
-				int classSize = Util.getClassSize(clazz);
-				stackOffset -= classSize;
-				int structOffset = stackOffset;
-
-				scopes.peek().put(decl.name, structOffset);
+	private static boolean isRead(List<Move> pending, Move m) {
+		for (Move other : pending) {
+			if (other != m && !other.address && other.src.equals(m.dst)) return true;
+		}
+		return false;
+	}
 
-				out.printf("    lea %d(%%rbp), %%rax\n", structOffset);
-				out.printf("    mov %%rax, %d(%%rbp)\n", structOffset);
+	// source operand usable directly by an instruction, SLOT addresses go through 'scratch'
+	private Operand source(Value v, Operand scratch) {
+		Operand src = operand(v);
+		if (src != null) return src;
+		load(v, scratch);
+		return scratch;
+	}
 
-				for (VarDeclNode field : clazz.fields.values()) {
-					if (field.typeClass != null) {
-						int fieldOffset = Util.resolveFieldOffset(clazz, field.name);
-						out.printf("    lea %d(%%rbp), %%rax\n", structOffset + fieldOffset);
-						out.printf("    mov %%rax, %d(%%rbp)\n", structOffset + fieldOffset);
-					}
-				}
+	private void store(Operand reg, Operand dst) {
+		if (!reg.equals(dst)) code.add(MOV, reg, dst);
+	}
 
-			} else {
-				declareVar(decl.name);
-				// int, bool etc.
-				if (decl.value != null) {
-					gen(decl.value);
-					out.printf("    mov %%rax, %d(%%rbp)\n", lookupVar(decl.name));
+	// the offsets from %rbp of the frame words that hold a reference during each call
+	private void computeStackMaps(IrFunction ir, List<LiveInterval> intervals, LivenessAnalyzer liveness) {
+		stackMaps.clear();
+		List<Integer> slotWords = new ArrayList<>();
+		for (FrameSlot slot : ir.slots) {
+			for (int p : slot.pointers)
+				slotWords.add(slot.offset + p);
+		}
+		for (BasicBlock block : ir.blocks) {
+			for (Instr instr : block.instrs) {
+				if (instr.op != Opcode.CALL) continue;
+				int pos = liveness.position(instr);
+				List<Integer> words = new ArrayList<>(slotWords);
+				for (LiveInterval it : intervals) {
+					if (it.reg == null && it.value.type == IrType.PTR && it.start < pos && pos < it.end)
+						words.add((int) locations.get(it.value).value);
 				}
+				stackMaps.put(instr, words.stream().sorted().mapToInt(Integer::intValue).toArray());
 			}
+		}
+	}
 
-		} else if (node instanceof AssignNode assign) {
-			gen(assign.value);
+	void emit(FuncDefNode func) {
+		emit(new IrBuilder(inliner, gc).build(func));
+	}
 
-			if (assign.target instanceof IdentNode ident) {
-				int offset = lookupVar(ident.varDecl.name);
-				out.printf("    mov %%rax, %d(%%rbp)\n", offset);
-			} else {
-				genLValueAddr(assign.target);
-				out.println("    mov %rax, (%rdi)");
+	void emit(IrFunction ir) {
+		this.fn = ir;
+		new DeadCodeEliminator().run(ir);
+		new ScalarReplacement().run(ir);
+		new DeadCodeEliminator().run(ir);
+		new TailCalls().run(ir);
+		new LoopOptimizer().run(ir);
+		new DeadCodeEliminator().run(ir);
+		ir.splitCriticalEdges();
+
+		LivenessAnalyzer liveness = new LivenessAnalyzer();
+		List<LiveInterval> intervals = liveness.analyze(ir);
+		LinearScanAllocator allocator = new LinearScanAllocator();
+		allocator.spillPointersAcrossCalls = gc;
+		allocator.allocate(intervals);
+		savedRegs = new ArrayList<>();
+		for (String reg : allocator.getUsedCalleeSaved())
+			savedRegs.add(Operand.parse(reg));
+
+		// frame: saved callee registers, inline objects, spilled values
+		int used = 8 * savedRegs.size();
+		used += layoutSlots(ir.slots, used);
+		int spillBase = used;
+		used += 8 * allocator.assignSpillSlots(intervals);
+		frameSize = (used + 15) & ~15; // keeps %rsp 16-byte aligned at calls
+
+		locations.clear();
+		fused.clear();
+		Map<Value, Integer> uses = ir.useCounts();
+		for (BasicBlock block : ir.blocks) {
+			int n = block.instrs.size();
+			Instr last = block.instrs.get(n - 1);
+			if (last.op == Opcode.BR && n > 1 && last.args.get(0) == block.instrs.get(n - 2)
+					&& block.instrs.get(n - 2).op.isCompare() && uses.get(last.args.get(0)) == 1) {
+				fused.add(block.instrs.get(n - 2));
 			}
+		}
+		for (LiveInterval it : intervals) {
+			if (it.reg == null) locations.put(it.value, mem(RBP.reg, -(spillBase + 8 * (it.spillSlot + 1))));
+			else locations.put(it.value, Operand.parse(it.reg));
+		}
+		if (gc) computeStackMaps(ir, intervals, liveness);
 
-		} else if (node instanceof ReturnNode ret) {
-			if (ret.expr != null && currentReturnType.equals("void"))
-				throw new RuntimeException("Cannot return a value from a void function");
-			if (ret.expr == null && !currentReturnType.equals("void"))
-				throw new RuntimeException("Must return a value from a non-void function");
-			if (ret.expr != null) gen(ret.expr);
-			out.println("    mov %rbp, %rsp");
-			out.println("    pop %rbp");
-			out.println("    ret");
-
-		} else if (node instanceof IfNode ifn) {
-			int elseLabel = labelCounter++;
-			int endLabel = labelCounter++;
-
-			gen(ifn.cond);
-			out.println("    cmp $0, %rax");
-			out.printf("    je .Lelse%d\n", elseLabel);
-
-			gen(ifn.thenBranch);
-			out.printf("    jmp .Lend%d\n", endLabel);
-
-			// Else or Else-If
-			out.printf(".Lelse%d:\n", elseLabel);
-			if (ifn.elseBranch != null) gen(ifn.elseBranch);
-
-			out.printf(".Lend%d:\n", endLabel);
-
-		} else if (node instanceof WhileNode wn) {
-			int label = labelCounter++;
-			out.printf(".Lbegin%d:\n", label);
-			gen(wn.cond);
-			out.println("    cmp $0, %rax");
-			out.printf("    je .Lend%d\n", label);
-			gen(wn.body);
-			out.printf("    jmp .Lbegin%d\n", label);
-			out.printf(".Lend%d:\n", label);
-
-		} else if (node instanceof FuncCallNode fn) {
-			String[] argRegs = { "%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9" };
-			int n = fn.args.size();
-			if (n > argRegs.length) throw new RuntimeException("Too many arguments");
-
-			for (int i = 0; i < n; i++) {
-				gen(fn.args.get(i));
-				out.println("    push %rax");
-			}
-			for (int i = n - 1; i >= 0; i--) {
-				out.printf("    pop %s\n", argRegs[i]);
-			}
+		// a leaf function that keeps everything in registers needs no frame at all
+		hasFrame = frameSize > 0 || !isLeaf(ir);
 
-			out.printf("    call %s\n", fn.name);
+		code = new InstrBuffer(ir.name);
+		functions.add(code);
+		if (hasFrame) {
+			code.add(PUSH, RBP);
+			code.add(MOV, RSP, RBP);
+		}
+		if (frameSize > 0) code.add(SUB, imm(frameSize), RSP);
 
-		} else if (node instanceof IdentNode ident) {
-			out.printf("    mov %d(%%rbp), %%rax\n", lookupVar(ident.varDecl.name));
+		for (int i = 0; i < savedRegs.size(); i++) {
+			code.add(MOV, savedRegs.get(i), mem(RBP.reg, -8 * (i + 1)));
+		}
+		if (gc) {
+			for (FrameSlot slot : ir.slots) {
+				for (int p : slot.pointers)
+					code.add(MOV, -1, 8, imm(0), mem(RBP.reg, slot.offset + p));
+			}
+		}
 
-		} else if (node instanceof FieldAccessNode fa) {
-			genLValueAddr(fa);
-			out.println("    mov (%rdi), %rax");
+		List<Move> params = new ArrayList<>();
+		for (Instr param : ir.params) {
+			Operand loc = locations.get(param);
+			if (loc != null) params.add(new Move(loc, ARG_REGS[param.index], false));
+		}
+		parallelMove(params);
+
+		List<BasicBlock> blocks = ir.blocks;
+		for (int i = 0; i < blocks.size(); i++) {
+			BasicBlock block = blocks.get(i);
+			BasicBlock next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+			if (i > 0) code.label(label(block));
+			for (Instr instr : block.instrs)
+				emitInstr(instr, next);
+		}
+	}
 
+	public void gen(Node node) {
+		if (node instanceof ProgramNode prog) {
+			inliner = new Inliner(prog);
+			gc = prog.garbageCollected;
+			for (ClassDefNode clazz : prog.types.values()) {
+				gen(clazz);
+			}
+			if (prog.main != null) emit(prog.main); // only one unit of a project has it
+		} else if (node instanceof ClassDefNode clazz) {
+			for (FuncDefNode method : clazz.methods.values()) {
+				if (method.body != null) gen(method); // @Extern: in the runtime
+			}
+		} else if (node instanceof FuncDefNode func) {
+			emit(func);
 		} else {
 			throw new RuntimeException("Unsupported node type: " + node.getClass().getSimpleName());
 		}
@@ -1,19 +1,74 @@
-
 package compiler;
 
 import java.util.*;
 
 import compiler.Token.*;
 
+// Scans the source as a char[] with a table of character classes. Words are
+// interned in an open-addressing table keyed by the scanned chars, so a
+// repeated identifier or keyword does not allocate a String; operators and
+// punctuation use constant texts. Numbers are computed while scanning.
 public class Lexer {
-	static int pos = 0;
-	private final List<Token> tokens = new ArrayList<>();
-	private final Set<String> keywords = Set.of("package", "import", "class", "return", "if", "else", "while", "true",
-			"false", "null");
-	private final Set<String> builtInTypes = Set.of("int", "void"); // , "bool", "char", "float", "double"
+	private static final byte OTHER = 0;
+	private static final byte SPACE = 1;
+	private static final byte DIGIT = 2;
+	private static final byte LETTER = 3;
+	private static final byte[] CHAR_CLASS = new byte[128];
+
+	private static final Kind[] SINGLE_CHAR = new Kind[128];
+	private static final String[] SINGLE_CHAR_TEXT = new String[128];
+
+	private static final String[] KEYWORDS = { "package", "import", "class", "return", "if", "else", "while", "true",
+			"false", "null", "new", "delete" };
+	// see PrimitiveType
+	private static final String[] BUILT_IN_TYPES = { "int", "void", "i8", "i16", "i32", "i64", "bool", "char" }; // , "float", "double"
+
+	static {
+		for (char c = '0'; c <= '9'; c++)
+			CHAR_CLASS[c] = DIGIT;
+		for (char c = 'a'; c <= 'z'; c++)
+			CHAR_CLASS[c] = LETTER;
+		for (char c = 'A'; c <= 'Z'; c++)
+			CHAR_CLASS[c] = LETTER;
+		for (char c : new char[] { ' ', '\t', '\n', '\r', '\f', 0x0B, 0x1C, 0x1D, 0x1E, 0x1F })
+			CHAR_CLASS[c] = SPACE;
+
+		single('+', Kind.PLUS);
+		single('-', Kind.MINUS);
+		single('*', Kind.MUL);
+		single('/', Kind.DIV);
+		single('%', Kind.MOD);
+		single('=', Kind.ASSIGN);
+		single('<', Kind.LT);
+		single('>', Kind.GT);
+		single('(', Kind.LPAREN);
+		single(')', Kind.RPAREN);
+		single('{', Kind.LBRACE);
+		single('}', Kind.RBRACE);
+		single(',', Kind.COMMA);
+		single(';', Kind.SEMI);
+		single('.', Kind.DOT);
+		single('!', Kind.NOT);
+		single('@', Kind.AT);
+	}
+
+	// parser cursor
+	private int pos = 0;
+	private final List<Token> tokens;
+
+	// interned words: names[i] has kinds[i] (IDENT, TYPE or a keyword)
+	private String[] names = new String[256];
+	private Kind[] kinds = new Kind[256];
+	private int[] hashes = new int[256];
+	private int wordCount = 0;
 
 	public Lexer(String input) {
-		tokenize(input);
+		tokens = new ArrayList<>(input.length() / 4 + 16);
+		for (String keyword : KEYWORDS)
+			define(keyword, Kind.valueOf(keyword.toUpperCase()));
+		for (String type : BUILT_IN_TYPES)
+			define(type, Kind.TYPE);
+		tokenize(input.toCharArray());
 	}
 
 	private void addToken(Token token) {
@@ -31,118 +86,192 @@ public class Lexer {
 		tokens.add(token);
 	}
 
-	private void tokenize(String input) {
-		int p = 0;
-		while (p < input.length()) {
-			char ch = input.charAt(p);
+	private static int charClass(char c) {
+		if (c < 128) return CHAR_CLASS[c];
+		if (Character.isWhitespace(c)) return SPACE;
+		if (Character.isDigit(c)) return DIGIT;
+		if (Character.isLetter(c)) return LETTER;
+		return OTHER;
+	}
 
-			if (ch == '/' && p + 1 < input.length()) {
-				char next = input.charAt(p + 1);
-				if (next == '/') {
-					while (p < input.length() && input.charAt(p) != '\n')
-						p++;
-					continue;
-				} else if (next == '*') {
-					p += 2;
-					while (p + 1 < input.length() && !(input.charAt(p) == '*' && input.charAt(p + 1) == '/'))
-						p++;
-					p += 2;
-					continue;
-				}
-			}
+	private void define(String word, Kind kind) {
+		char[] chars = word.toCharArray();
+		int slot = lookup(chars, 0, chars.length, hash(chars, 0, chars.length));
+		if (names[slot] == null) insert(slot, word, kind, hash(chars, 0, chars.length));
+		else kinds[slot] = kind;
+	}
+
+	private static int hash(char[] buf, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + buf[i];
+		return h;
+	}
+
+	private void insert(int slot, String word, Kind kind, int hash) {
+		names[slot] = word;
+		kinds[slot] = kind;
+		hashes[slot] = hash;
+		if (++wordCount * 2 > names.length) rehash();
+	}
+
+	// slot holding the word buf[start..end), or the empty slot where it goes
+	private int lookup(char[] buf, int start, int end, int hash) {
+		int mask = names.length - 1;
+		int slot = hash & mask;
+		while (names[slot] != null) {
+			if (hashes[slot] == hash && sameChars(names[slot], buf, start, end)) return slot;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash() {
+		String[] oldNames = names;
+		Kind[] oldKinds = kinds;
+		int[] oldHashes = hashes;
+		names = new String[oldNames.length * 2];
+		kinds = new Kind[names.length];
+		hashes = new int[names.length];
+
+		int mask = names.length - 1;
+		for (int i = 0; i < oldNames.length; i++) {
+			if (oldNames[i] == null) continue;
+			int slot = oldHashes[i] & mask;
+			while (names[slot] != null)
+				slot = (slot + 1) & mask;
+			names[slot] = oldNames[i];
+			kinds[slot] = oldKinds[i];
+			hashes[slot] = oldHashes[i];
+		}
+	}
+
+	private static boolean sameChars(String name, char[] buf, int start, int end) {
+		if (name.length() != end - start) return false;
+		for (int i = start; i < end; i++) {
+			if (name.charAt(i - start) != buf[i]) return false;
+		}
+		return true;
+	}
+
+	private static void single(char c, Kind kind) {
+		SINGLE_CHAR[c] = kind;
+		SINGLE_CHAR_TEXT[c] = String.valueOf(c);
+	}
 
-			if (Character.isWhitespace(ch)) {
+	private void tokenize(char[] buf) {
+		int n = buf.length;
+		int p = 0;
+		while (p < n) {
+			char ch = buf[p];
+			int cls = charClass(ch);
+
+			if (cls == SPACE) {
 				p++;
 				continue;
 			}
 
-			if (Character.isDigit(ch)) {
+			if (cls == LETTER) {
 				int start = p;
-				while (p < input.length() && Character.isDigit(input.charAt(p)))
-					p++;
-				String num = input.substring(start, p);
-				addToken(new Token(Kind.NUM, num));
+				int h = 0;
+				while (p < n && charClass(buf[p]) >= DIGIT) // letter or digit
+					h = 31 * h + buf[p++];
+				int slot = lookup(buf, start, p, h);
+				if (names[slot] == null) insert(slot, new String(buf, start, p - start), Kind.IDENT, h);
+				slot = lookup(buf, start, p, h); // insert may have rehashed
+				addToken(new Token(kinds[slot], names[slot], start));
 				continue;
 			}
 
-			if (Character.isLetter(ch)) {
+			if (cls == DIGIT) {
 				int start = p;
-				while (p < input.length() && Character.isLetterOrDigit(input.charAt(p)))
-					p++;
-				String word = input.substring(start, p);
-				if (keywords.contains(word)) {
-					addToken(new Token(word));
-				} else if (builtInTypes.contains(word)) {
-					addToken(new Token(Kind.TYPE, word));
-				} else {
-					addToken(new Token(Kind.IDENT, word));
+				long value = 0;
+				while (p < n && charClass(buf[p]) == DIGIT) {
+					value = value * 10 + Character.digit(buf[p++], 10);
+					if (value > Integer.MAX_VALUE) throw new RuntimeException("Number too large at " + start);
 				}
+				Token num = new Token(Kind.NUM, new String(buf, start, p - start), start);
+				num.value = (int) value;
+				addToken(num);
+				continue;
+			}
+
+			if (ch == '"') {
+				int start = p++;
+				while (p < n && buf[p] != '"' && buf[p] != '\n')
+					p++;
+				if (p == n || buf[p] != '"') throw new RuntimeException("Unterminated string at " + start);
+				addToken(new Token(Kind.STRING, new String(buf, start + 1, p - start - 1), start));
+				p++;
 				continue;
 			}
 
+			if (ch == '/' && p + 1 < n) {
+				char next = buf[p + 1];
+				if (next == '/') {
+					while (p < n && buf[p] != '\n')
+						p++;
+					continue;
+				} else if (next == '*') {
+					p += 2;
+					while (p + 1 < n && !(buf[p] == '*' && buf[p + 1] == '/'))
+						p++;
+					p += 2;
+					continue;
+				}
+			}
+
 			// Two-character operators
-			if (p + 1 < input.length()) {
-				String op2 = input.substring(p, p + 2);
-				boolean find = true;
+			if (p + 1 < n) {
+				char next = buf[p + 1];
 				Kind kind = null;
-				switch (op2) {
-				case "==":
-					kind = Kind.EQ;
-					break;
-				case "!=":
-					kind = Kind.NEQ;
-					break;
-				case "<=":
-					kind = Kind.LE;
-					break;
-				case ">=":
-					kind = Kind.GE;
-					break;
-				case "&&":
+				String text = null;
+				if (next == '=') {
+					switch (ch) {
+					case '=' -> {
+						kind = Kind.EQ;
+						text = "==";
+					}
+					case '!' -> {
+						kind = Kind.NEQ;
+						text = "!=";
+					}
+					case '<' -> {
+						kind = Kind.LE;
+						text = "<=";
+					}
+					case '>' -> {
+						kind = Kind.GE;
+						text = ">=";
+					}
+					}
+				} else if (ch == '&' && next == '&') {
 					kind = Kind.AND;
-					break;
-				case "||":
+					text = "&&";
+				} else if (ch == '|' && next == '|') {
 					kind = Kind.OR;
-					break;
-				default:
-					find = false;
-					break;
+					text = "||";
 				}
-				if (find) {
-					addToken(new Token(kind, op2));
+				if (kind != null) {
+					addToken(new Token(kind, text, p));
 					p += 2;
 					continue;
 				}
 			}
 
 			// Single-character tokens
-			char c = input.charAt(p++);
-			switch (c) {
-			case '+' -> addToken(new Token(Kind.PLUS, "+"));
-			case '-' -> addToken(new Token(Kind.MINUS, "-"));
-			case '*' -> addToken(new Token(Kind.MUL, "*"));
-			case '/' -> addToken(new Token(Kind.DIV, "/"));
-			case '=' -> addToken(new Token(Kind.ASSIGN, "="));
-			case '<' -> addToken(new Token(Kind.LT, "<"));
-			case '>' -> addToken(new Token(Kind.GT, ">"));
-			case '(' -> addToken(new Token(Kind.LPAREN, "("));
-			case ')' -> addToken(new Token(Kind.RPAREN, ")"));
-			case '{' -> addToken(new Token(Kind.LBRACE, "{"));
-			case '}' -> addToken(new Token(Kind.RBRACE, "}"));
-			case ',' -> addToken(new Token(Kind.COMMA, ","));
-			case ';' -> addToken(new Token(Kind.SEMI, ";"));
-			case '.' -> addToken(new Token(Kind.DOT, "."));
-			case '!' -> addToken(new Token(Kind.NOT, "!"));
-			default -> throw new RuntimeException("Unknown character: " + c);
-			}
+			Kind kind = ch < 128 ? SINGLE_CHAR[ch] : null;
+			if (kind == null) throw new RuntimeException("Unknown character: " + ch);
+			addToken(new Token(kind, SINGLE_CHAR_TEXT[ch], p));
+			p++;
 		}
 
 		// EOF
-		addToken(new Token(Kind.EOF, ""));
+		addToken(new Token(Kind.EOF, "", n));
 	}
 
 	public void addType(String name) {
-		builtInTypes.add(name);
+		define(name, Kind.TYPE);
 	}
 
 	public Token advance() {
@@ -158,4 +287,8 @@ public class Lexer {
 		if (pos > 0) pos--;
 		return current();
 	}
+
+	public int size() {
+		return tokens.size();
+	}
 }
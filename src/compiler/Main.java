@@ -2,13 +2,30 @@
 package compiler;
 
 import java.io.*;
+import java.nio.file.*;
+import java.util.*;
 
+import compiler.asm.*;
 import compiler.ast.core.*;
+import compiler.opt.*;
 import compiler.util.*;
 
 public class Main {
 
+	// args: source code, a .kite file name or a project directory; -S also writes the assembly text,
+	// -peephole=<rules> selects the peephole rules ("none", "all" or "copy,jump-next"...),
+	// -layout=header the object layout with a fat pointer in each object (see ClassLayout)
 	public static void main(String[] args) throws Exception {
+		Parser parser = null;
+		boolean emitAsm = List.of(args).contains("-S");
+		Peephole peephole = new Peephole();
+		boolean compactLayout = true;
+		for (String arg : args) {
+			if (arg.startsWith("-peephole=")) peephole = new Peephole(Peephole.parseRules(arg.substring(10)));
+			if (arg.startsWith("-layout=")) compactLayout = parseLayout(arg.substring(8));
+		}
+		args = Arrays.stream(args).filter(a -> !a.equals("-S") && !a.startsWith("-peephole=") && !a.startsWith("-layout="))
+				.toArray(String[]::new);
 		try {
 			String input = args.length > 0 ? args[0] : """
 					class A {
@@ -27,28 +44,47 @@ public class Main {
 					}
 					""";
 
-			if (args[0] != null && args[0].contains(".kite")) input = Util.loadKiteFile(args[0]);
-
-			Lexer lexer = new Lexer(input);
-			Parser parser = new Parser(lexer);
-			ProgramNode ast = parser.parse();
-
-			System.err.println("packageName: " + ast.packageName);
-
-			PrintWriter out = new PrintWriter("out.s");
-			CodeGen codegen = new CodeGen(out);
-			codegen.gen(ast);
-			out.close();
-			
 			String os = System.getProperty("os.name").toLowerCase();
 			String execFile = "./out";
 			if (os.contains("win")) execFile += ".exe";
-			
 
-			// Compile the generated assembly code using gcc
-			// gcc -no-pie -g -o out out.s
-			Process gcc = new ProcessBuilder("gcc", "-no-pie", "-g", "-o", execFile, "out.s").inheritIO().start();
-			gcc.waitFor();
+			if (args.length > 0 && new File(args[0]).isDirectory()) {
+				// project mode: every .kite file of the package tree, see ProjectCompiler
+				ProjectCompiler project = new ProjectCompiler(Paths.get(args[0]), Paths.get("build"));
+				project.emitAsm = emitAsm;
+				project.peephole = peephole;
+				project.compactLayout = compactLayout;
+				List<Path> objs = project.compile();
+				System.err.printf("%d of %d units up to date\n", project.upToDate, project.units);
+				System.err.println("peephole: " + peephole);
+				ProjectCompiler.link(objs, execFile);
+			} else {
+				if (args[0] != null && args[0].contains(".kite")) input = Util.loadKiteFile(args[0]);
+
+				// a single file depends only on itself, an unchanged source reuses its out.o
+				BuildCache cache = new BuildCache(Paths.get("build", "cache"));
+				String key = BuildCache.key(List.of(input, "peephole " + peephole.rules(), "layout " + compactLayout));
+				if (cache.hasObj(key) && !emitAsm) {
+					Files.copy(cache.obj(key), Paths.get("out.o"), StandardCopyOption.REPLACE_EXISTING);
+				} else {
+					Lexer lexer = new Lexer(input);
+					parser = new Parser(lexer);
+					parser.compactLayout = compactLayout;
+					ProgramNode ast = parser.parse();
+
+					System.err.println("packageName: " + ast.packageName);
+
+					List<InstrBuffer> code = Pipeline.generate(ast, peephole);
+					System.err.println("peephole: " + peephole);
+					if (emitAsm) Files.writeString(Paths.get("out.s"), Pipeline.toAtt(code));
+					byte[] obj = Pipeline.assemble(code);
+					Files.write(Paths.get("out.o"), obj);
+					cache.store(obj, cache.obj(key));
+				}
+
+				// gcc -no-pie -g -o out out.o
+				ProjectCompiler.link(List.of(Paths.get("out.o")), execFile);
+			}
 
 			// ./out; echo "Exit code: $?"
 			Process run = new ProcessBuilder(execFile).redirectErrorStream(true).start();
@@ -61,8 +97,16 @@ public class Main {
 			System.err.println("Exit code: " + (byte) result);
 
 		} catch (Exception e) {
-			if (Parser.current != null)	Util.debugPrintTokens(Parser.current, 5, e);
+			if (parser != null && parser.current != null) Util.debugPrintTokens(parser.current, 5, e);
 			else e.printStackTrace();
 		}
 	}
+
+	private static boolean parseLayout(String layout) {
+		return switch (layout) {
+		case "compact" -> true;
+		case "header" -> false;
+		default -> throw new RuntimeException("Unknown layout: " + layout + " (compact or header)");
+		};
+	}
 }
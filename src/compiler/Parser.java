@@ -11,12 +11,20 @@ import compiler.ast.var_def.*;
 import compiler.util.*;
 
 public class Parser {
-	public static Token current;
-	private static BlockNode currentBlock;
+	public Token current;
+	private BlockNode currentBlock;
 
-	private static Node currentStatement;
+	private Node currentStatement;
 	private final Lexer lexer;
 
+	// during parsing, we have only type names (string) in VarDeclNode objects.
+	// When all classes are known, link() resolves typeClass of these declarations.
+	private final List<VarDeclNode> vars = new ArrayList<>();
+	private final List<NewNode> news = new ArrayList<>();
+	private ProgramNode prog;
+	// object layout of a single file program (see ClassLayout), false for -layout=header
+	public boolean compactLayout = true;
+
 	Parser(Lexer lexer) {
 		this.lexer = lexer;
 		current = lexer.current();
@@ -44,9 +52,18 @@ public class Parser {
 		eat(Token.Kind.LBRACE);
 
 		while (current.kind != Token.Kind.RBRACE) {
+			Map<String, List<Object>> annotations = annotations();
 
 			if (isFuncDef()) {
-				funcDef(clazz);
+				FuncDefNode fn = funcDef(clazz);
+				annotate(fn, annotations);
+				if (fn.body == null && !annotations.containsKey(FuncDefNode.EXTERN))
+					throw new RuntimeException("Missing body of method: " + fn.name);
+				if (fn.body != null && annotations.containsKey(FuncDefNode.EXTERN))
+					throw new RuntimeException("An @Extern method has no body: " + fn.name);
+
+			} else if (!annotations.isEmpty()) {
+				throw new RuntimeException("Annotations are only allowed on methods: " + annotations.keySet());
 
 			} else if (current.kind == Token.Kind.TYPE) {
 				varDecl(clazz, null, null);
@@ -60,6 +77,41 @@ public class Parser {
 		return clazz;
 	}
 
+	// @Name @Other("text", 42) ... before a method: the names and their arguments
+	private Map<String, List<Object>> annotations() {
+		Map<String, List<Object>> annotations = new LinkedHashMap<>();
+		while (current.kind == Token.Kind.AT) {
+			eat(Token.Kind.AT);
+			String name = current.text;
+			// an annotation before a class name lexes as a TYPE (two names in a row)
+			eat(current.kind == Token.Kind.TYPE ? Token.Kind.TYPE : Token.Kind.IDENT);
+			List<Object> args = new ArrayList<>();
+			if (current.kind == Token.Kind.LPAREN) {
+				eat(Token.Kind.LPAREN);
+				while (current.kind != Token.Kind.RPAREN) {
+					if (!args.isEmpty()) eat(Token.Kind.COMMA);
+					if (current.kind == Token.Kind.STRING) {
+						args.add(current.text);
+						eat(Token.Kind.STRING);
+					} else {
+						args.add(current.value);
+						eat(Token.Kind.NUM);
+					}
+				}
+				eat(Token.Kind.RPAREN);
+			}
+			annotations.put(name, args);
+		}
+		return annotations;
+	}
+
+	private static void annotate(FuncDefNode fn, Map<String, List<Object>> annotations) {
+		fn.annotations.addAll(annotations.keySet());
+		for (Map.Entry<String, List<Object>> e : annotations.entrySet()) {
+			if (!e.getValue().isEmpty()) fn.annotationArgs.put(e.getKey(), e.getValue());
+		}
+	}
+
 	private void eat(Token.Kind kind) {
 		if (current.kind == kind) {
 			current = lexer.advance();
@@ -77,6 +129,7 @@ public class Parser {
 
 		if (clazz == null) fn = new FuncDefNode(returnType, methodName); // main function
 		else fn = new FuncDefNode(clazz, returnType, methodName);
+		vars.addAll(fn.params.values()); // 'this'
 
 		eat(Token.Kind.IDENT);
 		eat(Token.Kind.LPAREN);
@@ -86,19 +139,23 @@ public class Parser {
 			eat(Token.Kind.TYPE);
 			String paramName = current.text;
 			eat(Token.Kind.IDENT);
-			new ParamFuncDefNode(fn, paramType, paramName);
+			vars.add(new ParamFuncDefNode(fn, paramType, paramName));
 			while (current.kind == Token.Kind.COMMA) {
 				eat(Token.Kind.COMMA);
 				paramType = current.text;
 				eat(Token.Kind.TYPE);
 				paramName = current.text;
 				eat(Token.Kind.IDENT);
-				new ParamFuncDefNode(fn, paramType, paramName);
+				vars.add(new ParamFuncDefNode(fn, paramType, paramName));
 			}
 		}
 
 		eat(Token.Kind.RPAREN);
-		block(fn, null, null);
+		if (current.kind == Token.Kind.SEMI) {
+			eat(Token.Kind.SEMI); // no body: @Extern
+		} else {
+			block(fn, null, null);
+		}
 		return fn;
 	}
 
@@ -126,6 +183,7 @@ public class Parser {
 
 			if (current.kind == Token.Kind.IF) {
 				IfNode elseIfNode = new IfNode();
+				currentStatement = elseIfNode;
 				eat(Token.Kind.IF);
 				eat(Token.Kind.LPAREN);
 				elseIfNode.cond = expr();
@@ -133,6 +191,7 @@ public class Parser {
 				elseIfNode.thenBranch = statement();
 				elseIfChain.add(elseIfNode);
 			} else {
+				currentStatement = ifNode;
 				elseBranch = statement();
 				break;
 			}
@@ -193,6 +252,13 @@ public class Parser {
 			return parseWhile();
 		}
 
+		if (current.kind == Token.Kind.DELETE) {
+			eat(Token.Kind.DELETE);
+			Node expr = expr();
+			eat(Token.Kind.SEMI);
+			return new DeleteNode(expr);
+		}
+
 		if (current.kind == Token.Kind.RETURN) {
 			eat(Token.Kind.RETURN);
 
@@ -232,6 +298,7 @@ public class Parser {
 		else if (block != null) varDecl = new LocalVarDeclNode(block, type, name, value);
 		else throw new RuntimeException("Invalid context for variable declaration");
 
+		vars.add(varDecl);
 		return varDecl;
 	}
 
@@ -248,13 +315,14 @@ public class Parser {
 	BlockNode block(FuncDefNode fn, WhileNode whileNode, IfNode ifNode) {
 
 		BlockNode block = null;
+		BlockNode outer = currentBlock;
 
 		if (fn != null) block = new BlockNode(null, fn);
 		else if (whileNode != null) block = new BlockNode(currentBlock, whileNode);
 		else if (ifNode != null) block = new BlockNode(currentBlock, ifNode);
 		else throw new RuntimeException("Invalid context for block");
 
-		// currentBlock is static to avoid passing it as parameter
+		// currentBlock is a field to avoid passing it as parameter
 		// to all statements and expressions functions
 		currentBlock = block;
 
@@ -270,6 +338,8 @@ public class Parser {
 			}
 		}
 
+		// back to the enclosing scope, CodeGen reuses the stack of sibling blocks
+		currentBlock = outer;
 		return block;
 	}
 
@@ -313,7 +383,7 @@ public class Parser {
 
 	Node mul() {
 		Node node = unary();
-		while (current.kind == Token.Kind.MUL || current.kind == Token.Kind.DIV) {
+		while (current.kind == Token.Kind.MUL || current.kind == Token.Kind.DIV || current.kind == Token.Kind.MOD) {
 			Token.Kind op = current.kind;
 			eat(op);
 			node = new BinOpNode(node, op, primary());
@@ -321,8 +391,18 @@ public class Parser {
 		return node;
 	}
 
+	// parses and links a single file program
 	ProgramNode parse() {
-		ProgramNode prog = new ProgramNode();
+		parseUnit();
+		link(prog.types);
+		layoutClasses(prog.types.values(), compactLayout);
+		prog.garbageCollected = prog.main != null && prog.main.annotations.contains(FuncDefNode.WITH_GARBAGE_COLLECTOR);
+		return prog;
+	}
+
+	// syntax of one compilation unit, the types of its declarations are resolved later by link()
+	ProgramNode parseUnit() {
+		prog = new ProgramNode();
 
 		if (current.kind == Token.Kind.PACKAGE) {
 			eat(Token.Kind.PACKAGE);
@@ -341,7 +421,7 @@ public class Parser {
 			prog.packageName = sb.toString();
 		}
 
-		if (current.kind == Token.Kind.IMPORT) {
+		while (current.kind == Token.Kind.IMPORT) {
 			eat(Token.Kind.IMPORT);
 			StringBuilder sb = new StringBuilder();
 			sb.append(current.text);
@@ -360,11 +440,14 @@ public class Parser {
 		}
 
 		while (current.kind != Token.Kind.EOF) {
-			if (current.kind == Token.Kind.CLASS) {
+			Map<String, List<Object>> annotations = annotations();
+			if (current.kind == Token.Kind.CLASS && annotations.isEmpty()) {
 				classDef(prog);
 
 			} else if (isFuncDef()) {
 				FuncDefNode func = funcDef(null);
+				annotate(func, annotations);
+				if (func.body == null) throw new RuntimeException("Missing body of function: " + func.name);
 				if (!func.name.equals("main")) {
 					throw new RuntimeException("Only 'main' is allowed outside of a class. fn:" + func.name);
 				}
@@ -377,29 +460,57 @@ public class Parser {
 			}
 		}
 
-		// set typeClass for all variables
-		for (VarDeclNode v : VarDeclNode.allVars) {
-			if (v.typeClass != null) continue;
-			ClassDefNode c = prog.types.get(v.type);
-			if (c != null && !(v.value instanceof NullNode)) v.typeClass = c;
+		return prog;
+	}
+
+	// set typeClass or refClass for all variables declared in this unit, and
+	// the class of each 'new'. 'types' can have the classes of other units too
+	void link(Map<String, ClassDefNode> types) {
+		for (VarDeclNode v : vars) {
+			if (v.typeClass != null || v.refClass != null) continue;
+			ClassDefNode c = types.get(v.type);
+			if (c == null) continue;
+			// 'A a = null;' and 'A a = new A();' are references, 'A a;' an inline object
+			boolean reference = v.value instanceof NullNode || (v instanceof LocalVarDeclNode && v.value != null);
+			if (reference) v.refClass = c;
+			else v.typeClass = c;
+		}
+		for (NewNode n : news) {
+			n.clazz = types.get(n.type);
+			if (n.clazz == null) throw new RuntimeException("Unknown class: new " + n.type);
 		}
+	}
+
+	// type names used by the declarations and the 'new's of this unit
+	Set<String> referencedTypes() {
+		Set<String> types = new TreeSet<>();
+		for (VarDeclNode v : vars)
+			types.add(v.type);
+		for (NewNode n : news)
+			types.add(n.type);
+		return types;
+	}
 
-		// Analyze class dependencies to detect cycles
+	// once every unit is linked: rejects cycles of inline objects and computes the layouts
+	static ClassDependencyAnalyzer layoutClasses(Collection<ClassDefNode> classes, boolean compact) {
 		ClassDependencyAnalyzer analyzer = new ClassDependencyAnalyzer();
-		for (ClassDefNode clazz : prog.types.values()) {
+		for (ClassDefNode clazz : classes) {
 			for (VarDeclNode field : clazz.fields.values()) {
 				analyzer.addFieldDependency(clazz.name, field);
 			}
 		}
 		analyzer.checkForCycles();
 
-		return prog;
+		for (ClassDefNode clazz : classes) {
+			ClassLayout.of(clazz, compact);
+		}
+		return analyzer;
 	}
 
 	Node primary() {
 		Node node = null;
 		if (current.kind == Token.Kind.NUM) {
-			int value = Integer.parseInt(current.text);
+			int value = current.value;
 			eat(Token.Kind.NUM);
 			return new NumNode(value);
 		}
@@ -409,6 +520,22 @@ public class Parser {
 			return new NullNode();
 		}
 
+		if (current.kind == Token.Kind.NEW) {
+			eat(Token.Kind.NEW);
+			NewNode nn = new NewNode(current.text);
+			eat(current.kind == Token.Kind.TYPE ? Token.Kind.TYPE : Token.Kind.IDENT);
+			eat(Token.Kind.LPAREN);
+			eat(Token.Kind.RPAREN);
+			news.add(nn);
+			return nn;
+		}
+
+		if (current.kind == Token.Kind.TRUE || current.kind == Token.Kind.FALSE) {
+			boolean value = current.kind == Token.Kind.TRUE;
+			eat(current.kind);
+			return new NumNode(value ? 1 : 0);
+		}
+
 		if (current.kind == Token.Kind.IDENT) {
 			String var = current.text;
 			VarDeclNode varDecl = currentBlock.findVarDecl(var);
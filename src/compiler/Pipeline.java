@@ -0,0 +1,52 @@
+package compiler;
+
+import java.util.*;
+
+import compiler.asm.*;
+import compiler.ast.core.*;
+import compiler.opt.*;
+
+// The compiler phases as calls, for tools that run it in-process (TestRunner,
+// benchmarks). Every call works on its own objects, so several threads can
+// compile different programs at the same time.
+public class Pipeline {
+
+	public static Lexer lex(String source) {
+		return new Lexer(source);
+	}
+
+	public static ProgramNode parse(Lexer lexer) {
+		return new Parser(lexer).parse();
+	}
+
+	// optimizes the AST and lowers it to the instructions of every function
+	public static List<InstrBuffer> generate(ProgramNode ast) {
+		return generate(ast, new Peephole());
+	}
+
+	// same, with the peephole rules (and counters) of 'peephole'
+	public static List<InstrBuffer> generate(ProgramNode ast, Peephole peephole) {
+		new ConstantFolder().fold(ast);
+		CodeGen gen = new CodeGen();
+		gen.gen(ast);
+		for (InstrBuffer fn : gen.functions())
+			peephole.run(fn);
+		return gen.functions();
+	}
+
+	// assembly text of the functions (for -S)
+	public static String toAtt(List<InstrBuffer> functions) {
+		StringBuilder sb = new StringBuilder();
+		for (InstrBuffer fn : functions)
+			fn.writeAtt(sb);
+		return sb.toString();
+	}
+
+	// ELF64 relocatable object of the functions, see Assembler
+	public static byte[] assemble(List<InstrBuffer> functions) {
+		Assembler assembler = new Assembler();
+		for (InstrBuffer fn : functions)
+			assembler.add(fn);
+		return assembler.toObject();
+	}
+}
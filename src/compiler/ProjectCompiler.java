@@ -0,0 +1,221 @@
+package compiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import compiler.asm.*;
+import compiler.ast.core.*;
+import compiler.ast.stmt.*;
+import compiler.opt.*;
+import compiler.util.*;
+
+// Compiles all the .kite files of a package tree (ex: cia/) into one program.
+// The files are lexed and parsed in parallel, their class tables are merged so
+// a file can use the classes of the others, and each file gets its own object
+// file, generated and assembled concurrently in-process. gcc links the objects.
+//
+// Builds are incremental: the object of a unit is kept in a BuildCache under a
+// key made of its source and the signatures of the classes it depends on, so
+// only the changed units and the dependents of changed classes are compiled.
+public class ProjectCompiler {
+
+	// one .kite file of the project
+	private static class Unit {
+		final Path file;
+		String source;
+		Parser parser;
+		ProgramNode ast;
+		String key;
+		Path obj;
+		boolean upToDate;
+
+		Unit(Path file) {
+			this.file = file;
+		}
+	}
+
+	private interface Step {
+		void run(Unit unit) throws Exception;
+	}
+
+	private final Path root;
+	private final Path outDir;
+	private final ForkJoinPool pool;
+	private BuildCache cache;
+
+	// also write the assembly text of each unit (<name>.s), for debugging
+	public boolean emitAsm;
+	// rules of the peephole pass, and the instructions they removed from the units compiled
+	public Peephole peephole = new Peephole();
+	// object layout of the classes (see ClassLayout), false for -layout=header
+	public boolean compactLayout = true;
+
+	// units of the last compile() found in the cache
+	public int upToDate;
+	public int units;
+
+	public ProjectCompiler(Path root, Path outDir) {
+		this(root, outDir, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ProjectCompiler(Path root, Path outDir, int parallelism) {
+		this.root = root;
+		this.outDir = outDir;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	// all .kite files under root, in a stable order
+	private List<Unit> discover() throws IOException {
+		List<Unit> units = new ArrayList<>();
+		try (var paths = Files.walk(root)) {
+			paths.filter(p -> p.toString().endsWith(".kite") && Files.isRegularFile(p)).sorted()
+					.forEach(p -> units.add(new Unit(p)));
+		}
+		return units;
+	}
+
+	// runs 'step' for every unit on the pool and waits for all of them
+	private void parallel(List<Unit> units, Step step) {
+		List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+		for (Unit unit : units) {
+			tasks.add(pool.submit(() -> {
+				step.run(unit);
+				return null;
+			}));
+		}
+		for (ForkJoinTask<Void> task : tasks)
+			task.join();
+	}
+
+	private void parse(Unit unit) throws IOException {
+		unit.source = Files.readString(unit.file);
+		Lexer lexer = new Lexer(unit.source);
+		unit.parser = new Parser(lexer);
+		try {
+			unit.ast = unit.parser.parseUnit();
+		} catch (RuntimeException e) {
+			throw new RuntimeException(unit.file + ":" + line(unit.source, unit.parser.current.pos) + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static int line(String source, int pos) {
+		int line = 1;
+		for (int i = 0; i < pos && i < source.length(); i++) {
+			if (source.charAt(i) == '\n') line++;
+		}
+		return line;
+	}
+
+	// class table of the whole project
+	private static Map<String, ClassDefNode> merge(List<Unit> units) {
+		Map<String, ClassDefNode> types = new LinkedHashMap<>();
+		Unit mainUnit = null;
+		for (Unit unit : units) {
+			for (ClassDefNode clazz : unit.ast.types.values()) {
+				if (types.putIfAbsent(clazz.name, clazz) != null) {
+					throw new RuntimeException("Class " + clazz.name + " declared twice (" + unit.file + ")");
+				}
+			}
+			if (unit.ast.main != null) {
+				if (mainUnit != null) {
+					throw new RuntimeException("Multiple 'main' functions declared: " + mainUnit.file + ", " + unit.file);
+				}
+				mainUnit = unit;
+			}
+		}
+		if (mainUnit == null) throw new RuntimeException("No 'main' function in the project");
+		boolean gc = mainUnit.ast.main.annotations.contains(FuncDefNode.WITH_GARBAGE_COLLECTOR);
+		for (Unit unit : units)
+			unit.ast.garbageCollected = gc;
+		return types;
+	}
+
+	// source of the unit + signatures of the other classes it uses, directly
+	// or through inline fields (ClassDependencyAnalyzer graph), the peephole rules, the layout mode and
+	// whether the program is garbage collected
+	private String key(Unit unit, Map<String, ClassDefNode> types, ClassDependencyAnalyzer analyzer) {
+		Set<String> own = unit.ast.types.keySet();
+		Set<String> roots = new TreeSet<>(own);
+		roots.addAll(unit.parser.referencedTypes());
+
+		Set<String> deps = new TreeSet<>();
+		for (String name : roots) {
+			if (!types.containsKey(name)) continue;
+			deps.add(name);
+			deps.addAll(analyzer.dependenciesOf(name));
+		}
+		deps.removeAll(own);
+
+		List<String> parts = new ArrayList<>();
+		parts.add(unit.source);
+		parts.add("peephole " + peephole.rules());
+		parts.add("layout " + compactLayout);
+		parts.add("gc " + unit.ast.garbageCollected);
+		for (String name : deps)
+			parts.add(BuildCache.signature(types.get(name)));
+		return BuildCache.key(parts);
+	}
+
+	private void generate(Unit unit) throws IOException {
+		// cia/core/main.kite -> core_main.o
+		String name = root.relativize(unit.file).toString().replace(File.separatorChar, '_');
+		name = name.substring(0, name.length() - ".kite".length());
+		Path asmFile = outDir.resolve(name + ".s");
+		unit.obj = outDir.resolve(name + ".o");
+
+		if (cache.hasObj(unit.key) && (!emitAsm || Files.exists(cache.asm(unit.key)))) {
+			unit.upToDate = true;
+			Files.copy(cache.obj(unit.key), unit.obj, StandardCopyOption.REPLACE_EXISTING);
+			if (emitAsm) Files.copy(cache.asm(unit.key), asmFile, StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+
+		Peephole unitPeephole = new Peephole(peephole.rules());
+		List<InstrBuffer> code = Pipeline.generate(unit.ast, unitPeephole);
+		peephole.merge(unitPeephole);
+		byte[] obj = Pipeline.assemble(code);
+		Files.write(unit.obj, obj);
+		cache.store(obj, cache.obj(unit.key));
+		if (emitAsm) {
+			Files.writeString(asmFile, Pipeline.toAtt(code));
+			cache.store(asmFile, cache.asm(unit.key));
+		}
+	}
+
+	// writes one object file per unit into outDir (reusing the cached ones) and returns their paths
+	public List<Path> compile() throws IOException {
+		try {
+			List<Unit> units = discover();
+			if (units.isEmpty()) throw new RuntimeException("No .kite files in " + root);
+
+			parallel(units, this::parse);
+			Map<String, ClassDefNode> types = merge(units);
+			parallel(units, unit -> unit.parser.link(types));
+			ClassDependencyAnalyzer analyzer = Parser.layoutClasses(types.values(), compactLayout);
+
+			Files.createDirectories(outDir);
+			cache = new BuildCache(outDir.resolve("cache"));
+			parallel(units, unit -> unit.key = key(unit, types, analyzer));
+			parallel(units, this::generate);
+
+			List<Path> objs = new ArrayList<>();
+			upToDate = 0;
+			for (Unit unit : units) {
+				objs.add(unit.obj);
+				if (unit.upToDate) upToDate++;
+			}
+			this.units = units.size();
+			return objs;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// gcc -no-pie -g -o out a.o b.o ... and the runtime (see RuntimeLibrary)
+	public static void link(List<Path> objs, String execFile) throws IOException, InterruptedException {
+		Process gcc = new ProcessBuilder(RuntimeLibrary.linkCommand(objs, execFile)).inheritIO().start();
+		if (gcc.waitFor() != 0) throw new RuntimeException("gcc failed");
+	}
+}
@@ -2,13 +2,16 @@ package compiler;
 
 public class Token {
 	public enum Kind {
-		PACKAGE, IMPORT, IDENT, NUM, PLUS, MINUS, MUL, DIV, EQ, NEQ, LT, GT, LE, GE, ASSIGN, SEMI, COMMA, TYPE, RETURN,
-		IF, ELSE, WHILE, LPAREN, RPAREN, LBRACE, RBRACE, EOF, TRUE, FALSE, CLASS, DOT, AND, OR, NOT, THIS, NULL
+		PACKAGE, IMPORT, IDENT, NUM, PLUS, MINUS, MUL, DIV, MOD, EQ, NEQ, LT, GT, LE, GE, ASSIGN, SEMI, COMMA, TYPE, RETURN,
+		IF, ELSE, WHILE, LPAREN, RPAREN, LBRACE, RBRACE, EOF, TRUE, FALSE, CLASS, DOT, AND, OR, NOT, THIS, NULL, AT, NEW, DELETE,
+		STRING, // "text", only as an annotation argument
+		SHL // no source syntax, produced by ConstantFolder (x * 8 -> x << 3)
 	}
 
 	public Kind kind;
-	public int value;
 	public String text;
+	// value of a NUM, computed by the Lexer while scanning the digits
+	public int value;
 
 	public Token next;
 	public Token prev;
@@ -17,22 +20,10 @@ public class Token {
 	// for debugging purposes
 	public int pos;
 
-	Token(Kind kind, String text) {
+	Token(Kind kind, String text, int pos) {
 		this.kind = kind;
 		this.text = text;
-
-		try {
-			this.value = Integer.parseInt(text);
-		} catch (NumberFormatException e) {
-		}
-
-		// for error messages, we need to know the position in the input string
-		this.pos = Lexer.pos - text.length();
-
-	}
-
-	Token(String word) {
-		this(Kind.valueOf(word.toUpperCase()), word);
+		this.pos = pos; // for error messages
 	}
 
 	@Override
@@ -0,0 +1,195 @@
+package compiler.asm;
+
+import java.util.*;
+
+import compiler.asm.ElfWriter.*;
+
+// In-process assembler for the functions CodeGen emits as InstrBuffers. It
+// resolves the local labels itself, so only calls (and
+// jumps) to functions of other objects need relocations, and writes an ELF64
+// relocatable object.
+//
+// Jumps start in their 2-byte form (rel8) and are widened to rel32 until every
+// target is in range, like GNU as does.
+//
+// The stack maps of the calls (InstrBuffer.stackMap) go to a kite_gcmaps data
+// section, whose .quad return addresses are relocated against .text.
+public class Assembler {
+	private static final int BYTES = 0, LABEL = 1, JUMP = 2, CALL = 3;
+
+	// an encoded instruction, a label or a jump/call to a label
+	private static class Item {
+		final int kind;
+		byte[] bytes;
+		String name; // label defined, or target of the jump/call
+		int cc = -1; // condition of a jcc, -1 for jmp
+		boolean wide; // rel32 form
+		int offset;
+
+		Item(int kind) {
+			this.kind = kind;
+		}
+
+		int size() {
+			return switch (kind) {
+			case BYTES -> bytes.length;
+			case LABEL -> 0;
+			case CALL -> 5;
+			default -> wide ? (cc < 0 ? 5 : 6) : 2;
+			};
+		}
+	}
+
+	private final X86Encoder encoder = new X86Encoder();
+	private final CodeBuffer scratch = new CodeBuffer();
+	private final List<Item> items = new ArrayList<>();
+	private final Set<String> globals = new LinkedHashSet<>();
+	private final Map<String, Item> labels = new HashMap<>();
+	// the kite_gcmaps section, and the return address label of each of its records
+	private final CodeBuffer maps = new CodeBuffer();
+	private final Map<Integer, String> mapLabels = new LinkedHashMap<>();
+
+	// the stack map of the call that returns to 'label'
+	public void stackMap(String label, int[] offsets) {
+		mapLabels.put(maps.size(), label);
+		maps.putLong(0);
+		maps.putInt(offsets.length);
+		for (int offset : offsets)
+			maps.putInt(offset);
+		maps.align(8);
+	}
+
+	public void global(String name) {
+		globals.add(name);
+	}
+
+	public void label(String name) {
+		if (labels.containsKey(name)) throw new RuntimeException("Label defined twice: " + name);
+		Item item = new Item(LABEL);
+		item.name = name;
+		labels.put(name, item);
+		items.add(item);
+	}
+
+	public void instruction(Mnemonic op, int cond, int size, Operand... ops) {
+		if (op == Mnemonic.LABEL || op == Mnemonic.CALL || op == Mnemonic.JMP || op == Mnemonic.JCC) {
+			if (ops.length != 1 || ops[0].kind != Operand.Kind.SYMBOL) throw new RuntimeException("Expected a label: " + op);
+			if (op == Mnemonic.LABEL) {
+				label(ops[0].symbol);
+				return;
+			}
+			Item item = new Item(op == Mnemonic.CALL ? CALL : JUMP);
+			item.name = ops[0].symbol;
+			if (op == Mnemonic.JCC) item.cc = cond;
+			items.add(item);
+			return;
+		}
+
+		scratch.clear();
+		encoder.encode(op, cond, size, ops, scratch);
+		Item item = new Item(BYTES);
+		item.bytes = scratch.toByteArray();
+		items.add(item);
+	}
+
+	// a whole function
+	public void add(InstrBuffer code) {
+		global(code.name);
+		label(code.name);
+		for (int i = 0; i < code.size(); i++) {
+			if (code.isRemoved(i)) continue;
+			instruction(code.op(i), code.cond(i), code.opSize(i), code.args(i));
+			int[] map = code.stackMap(i);
+			if (map != null) {
+				label(code.stackMapLabel(i));
+				stackMap(code.stackMapLabel(i), map);
+			}
+		}
+	}
+
+	private static boolean isLocal(String label) {
+		return label.startsWith(".L");
+	}
+
+	// offsets of all items; returns true if a short jump had to be widened
+	private boolean layout() {
+		int offset = 0;
+		for (Item item : items) {
+			item.offset = offset;
+			offset += item.size();
+		}
+
+		boolean widened = false;
+		for (Item item : items) {
+			if (item.kind != JUMP || item.wide) continue;
+			Item target = labels.get(item.name);
+			long rel = target == null ? Long.MAX_VALUE : target.offset - (item.offset + 2L);
+			if (rel < -128 || rel > 127) {
+				item.wide = true;
+				widened = true;
+			}
+		}
+		return widened;
+	}
+
+	// the relocatable object with everything given so far
+	public byte[] toObject() {
+		while (layout()) {
+		}
+
+		CodeBuffer text = new CodeBuffer();
+		List<Relocation> relocations = new ArrayList<>();
+		Set<String> external = new LinkedHashSet<>();
+		for (Item item : items) {
+			switch (item.kind) {
+			case BYTES -> text.put(item.bytes);
+			case LABEL -> {
+			}
+			default -> {
+				Item target = labels.get(item.name);
+				if (item.kind == CALL) text.put(0xE8);
+				else if (!item.wide) text.put(item.cc < 0 ? 0xEB : 0x70 + item.cc);
+				else if (item.cc < 0) text.put(0xE9);
+				else {
+					text.put(0x0F);
+					text.put(0x80 + item.cc);
+				}
+
+				int end = item.offset + item.size();
+				if (target != null) {
+					if (item.wide || item.kind == CALL) text.putInt(target.offset - end);
+					else text.put(target.offset - end);
+				} else {
+					if (isLocal(item.name)) throw new RuntimeException("Undefined label: " + item.name);
+					relocations.add(new Relocation(text.size(), item.name, ElfWriter.R_X86_64_PLT32, -4));
+					external.add(item.name);
+					text.putInt(0);
+				}
+			}
+			}
+		}
+
+		// function symbols, a function ends where the next one starts
+		List<Symbol> symbols = new ArrayList<>();
+		List<Item> functions = new ArrayList<>();
+		for (Item item : items) {
+			if (item.kind == LABEL && !isLocal(item.name)) functions.add(item);
+		}
+		for (int i = 0; i < functions.size(); i++) {
+			Item f = functions.get(i);
+			int end = i + 1 < functions.size() ? functions.get(i + 1).offset : text.size();
+			symbols.add(new Symbol(f.name, f.offset, end - f.offset, globals.contains(f.name), true));
+		}
+		for (String name : external)
+			symbols.add(new Symbol(name, 0, 0, true, false));
+
+		// return addresses: .text + offset of the label
+		List<Relocation> mapRelocations = new ArrayList<>();
+		for (Map.Entry<Integer, String> e : mapLabels.entrySet()) {
+			Item target = labels.get(e.getValue());
+			if (target == null) throw new RuntimeException("Undefined label: " + e.getValue());
+			mapRelocations.add(new Relocation(e.getKey(), null, ElfWriter.R_X86_64_64, target.offset));
+		}
+		return ElfWriter.write(text.toByteArray(), symbols, relocations, maps.toByteArray(), mapRelocations);
+	}
+}
@@ -0,0 +1,53 @@
+package compiler.asm;
+
+import java.util.*;
+
+// Growable little-endian byte buffer for machine code and ELF files.
+public class CodeBuffer {
+	private byte[] data = new byte[256];
+	private int size;
+
+	public void put(int b) {
+		if (size == data.length) data = Arrays.copyOf(data, size * 2);
+		data[size++] = (byte) b;
+	}
+
+	public void put(byte[] bytes) {
+		if (size + bytes.length > data.length) data = Arrays.copyOf(data, Math.max(size * 2, size + bytes.length));
+		System.arraycopy(bytes, 0, data, size, bytes.length);
+		size += bytes.length;
+	}
+
+	public void putShort(int v) {
+		put(v);
+		put(v >> 8);
+	}
+
+	public void putInt(int v) {
+		putShort(v);
+		putShort(v >> 16);
+	}
+
+	public void putLong(long v) {
+		putInt((int) v);
+		putInt((int) (v >> 32));
+	}
+
+	// zeros up to a multiple of 'align'
+	public void align(int align) {
+		while (size % align != 0)
+			put(0);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(data, size);
+	}
+}
@@ -0,0 +1,181 @@
+package compiler.asm;
+
+import java.nio.charset.*;
+import java.util.*;
+
+// Writes a relocatable ELF64 x86-64 object (what 'gcc -c' produces) with one
+// .text section, its symbols and relocations. The empty .note.GNU-stack
+// section tells the linker the stack doesn't need to be executable. The
+// stack maps of a garbage collected program add a kite_gcmaps section (read
+// by the runtime between __start_kite_gcmaps and __stop_kite_gcmaps) and its
+// relocations.
+public class ElfWriter {
+	public static final int R_X86_64_64 = 1;
+	public static final int R_X86_64_PC32 = 2;
+	public static final int R_X86_64_PLT32 = 4;
+
+	// 'offset' and 'size' in .text; undefined symbols are resolved by the linker
+	public record Symbol(String name, int offset, int size, boolean global, boolean defined) {
+	}
+
+	// patch 'offset' of .text with 'symbol' + addend (relative to the patched address for PC32/PLT32),
+	// a null symbol is the start of .text
+	public record Relocation(int offset, String symbol, int type, long addend) {
+	}
+
+	private static final int SHT_PROGBITS = 1, SHT_SYMTAB = 2, SHT_STRTAB = 3, SHT_RELA = 4;
+	private static final int SHF_ALLOC = 0x2, SHF_EXECINSTR = 0x4, SHF_INFO_LINK = 0x40;
+	private static final int STB_LOCAL = 0, STB_GLOBAL = 1;
+	private static final int STT_NOTYPE = 0, STT_FUNC = 2, STT_SECTION = 3;
+
+	// section indexes
+	private static final int TEXT = 1, RELA_TEXT = 2, SYMTAB = 3, STRTAB = 4, SHSTRTAB = 5, NOTE_STACK = 6;
+	private static final int SECTIONS = 7;
+	private static final int GC_MAPS = 7, RELA_GC_MAPS = 8;
+
+	// string table: "\0name1\0name2\0..."
+	private static class StringTable {
+		final CodeBuffer bytes = new CodeBuffer();
+
+		StringTable() {
+			bytes.put(0);
+		}
+
+		int add(String s) {
+			int offset = bytes.size();
+			bytes.put(s.getBytes(StandardCharsets.UTF_8));
+			bytes.put(0);
+			return offset;
+		}
+	}
+
+	public static byte[] write(byte[] text, List<Symbol> symbols, List<Relocation> relocations) {
+		return write(text, symbols, relocations, new byte[0], List.of());
+	}
+
+	// with the kite_gcmaps section 'maps' when it is not empty
+	public static byte[] write(byte[] text, List<Symbol> symbols, List<Relocation> relocations, byte[] maps,
+			List<Relocation> mapRelocations) {
+		// symbol table: null, .text section, locals, then globals
+		StringTable strtab = new StringTable();
+		CodeBuffer symtab = new CodeBuffer();
+		Map<String, Integer> index = new HashMap<>();
+		symbol(symtab, 0, 0, 0, 0, 0);
+		symbol(symtab, 0, STB_LOCAL << 4 | STT_SECTION, TEXT, 0, 0);
+		int count = 2;
+		for (Symbol s : symbols) {
+			if (s.global) continue;
+			symbol(symtab, strtab.add(s.name), STB_LOCAL << 4 | STT_FUNC, TEXT, s.offset, s.size);
+			index.put(s.name, count++);
+		}
+		int firstGlobal = count;
+		for (Symbol s : symbols) {
+			if (!s.global) continue;
+			int type = s.defined ? STT_FUNC : STT_NOTYPE;
+			symbol(symtab, strtab.add(s.name), STB_GLOBAL << 4 | type, s.defined ? TEXT : 0, s.offset, s.size);
+			index.put(s.name, count++);
+		}
+
+		int sections = maps.length > 0 ? RELA_GC_MAPS + 1 : SECTIONS;
+		StringTable shstrtab = new StringTable();
+		int[] names = new int[sections];
+		names[TEXT] = shstrtab.add(".text");
+		names[RELA_TEXT] = shstrtab.add(".rela.text");
+		names[SYMTAB] = shstrtab.add(".symtab");
+		names[STRTAB] = shstrtab.add(".strtab");
+		names[SHSTRTAB] = shstrtab.add(".shstrtab");
+		names[NOTE_STACK] = shstrtab.add(".note.GNU-stack");
+		if (maps.length > 0) {
+			names[GC_MAPS] = shstrtab.add(InstrBuffer.GC_MAPS);
+			names[RELA_GC_MAPS] = shstrtab.add(".rela." + InstrBuffer.GC_MAPS);
+		}
+
+		// file: header, section contents, section headers
+		CodeBuffer out = new CodeBuffer();
+		for (int i = 0; i < 64; i++)
+			out.put(0); // header, written at the end
+
+		long[] offsets = new long[sections];
+		long[] sizes = new long[sections];
+		byte[][] contents = { null, text, rela(relocations, index), symtab.toByteArray(), strtab.bytes.toByteArray(),
+				shstrtab.bytes.toByteArray(), new byte[0], maps, rela(mapRelocations, index) };
+		for (int i = 1; i < sections; i++) {
+			out.align(i == TEXT ? 16 : 8);
+			offsets[i] = out.size();
+			sizes[i] = contents[i].length;
+			out.put(contents[i]);
+		}
+
+		out.align(8);
+		long shoff = out.size();
+		for (int i = 0; i < 64; i++)
+			out.put(0); // null section
+		section(out, names[TEXT], SHT_PROGBITS, SHF_ALLOC | SHF_EXECINSTR, offsets[TEXT], sizes[TEXT], 0, 0, 16, 0);
+		section(out, names[RELA_TEXT], SHT_RELA, SHF_INFO_LINK, offsets[RELA_TEXT], sizes[RELA_TEXT], SYMTAB, TEXT, 8,
+				24);
+		section(out, names[SYMTAB], SHT_SYMTAB, 0, offsets[SYMTAB], sizes[SYMTAB], STRTAB, firstGlobal, 8, 24);
+		section(out, names[STRTAB], SHT_STRTAB, 0, offsets[STRTAB], sizes[STRTAB], 0, 0, 1, 0);
+		section(out, names[SHSTRTAB], SHT_STRTAB, 0, offsets[SHSTRTAB], sizes[SHSTRTAB], 0, 0, 1, 0);
+		section(out, names[NOTE_STACK], SHT_PROGBITS, 0, offsets[NOTE_STACK], 0, 0, 0, 1, 0);
+		if (maps.length > 0) {
+			section(out, names[GC_MAPS], SHT_PROGBITS, SHF_ALLOC, offsets[GC_MAPS], sizes[GC_MAPS], 0, 0, 8, 0);
+			section(out, names[RELA_GC_MAPS], SHT_RELA, SHF_INFO_LINK, offsets[RELA_GC_MAPS], sizes[RELA_GC_MAPS], SYMTAB,
+					GC_MAPS, 8, 24);
+		}
+
+		byte[] file = out.toByteArray();
+		CodeBuffer header = new CodeBuffer();
+		header.put(new byte[] { 0x7F, 'E', 'L', 'F', 2, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0 }); // 64 bits, little endian
+		header.putShort(1); // ET_REL
+		header.putShort(62); // EM_X86_64
+		header.putInt(1); // EV_CURRENT
+		header.putLong(0); // entry
+		header.putLong(0); // program headers
+		header.putLong(shoff);
+		header.putInt(0); // flags
+		header.putShort(64); // header size
+		header.putShort(0);
+		header.putShort(0);
+		header.putShort(64); // section header size
+		header.putShort(sections);
+		header.putShort(SHSTRTAB);
+		System.arraycopy(header.toByteArray(), 0, file, 0, 64);
+		return file;
+	}
+
+	private static byte[] rela(List<Relocation> relocations, Map<String, Integer> index) {
+		CodeBuffer rela = new CodeBuffer();
+		for (Relocation r : relocations) {
+			// symbol 1 is the .text section
+			Integer sym = r.symbol == null ? Integer.valueOf(1) : index.get(r.symbol);
+			if (sym == null) throw new RuntimeException("Relocation to unknown symbol: " + r.symbol);
+			rela.putLong(r.offset);
+			rela.putLong((long) sym << 32 | r.type);
+			rela.putLong(r.addend);
+		}
+		return rela.toByteArray();
+	}
+
+	private static void symbol(CodeBuffer out, int name, int info, int section, long value, long size) {
+		out.putInt(name);
+		out.put(info);
+		out.put(0); // default visibility
+		out.putShort(section);
+		out.putLong(value);
+		out.putLong(size);
+	}
+
+	private static void section(CodeBuffer out, int name, int type, long flags, long offset, long size, int link,
+			int info, long align, long entsize) {
+		out.putInt(name);
+		out.putInt(type);
+		out.putLong(flags);
+		out.putLong(0); // address
+		out.putLong(offset);
+		out.putLong(size);
+		out.putInt(link);
+		out.putInt(info);
+		out.putLong(align);
+		out.putLong(entsize);
+	}
+}
@@ -0,0 +1,252 @@
+package compiler.asm;
+
+import java.util.*;
+
+// The instructions of one function, in parallel arrays instead of one object
+// (or one formatted line) per instruction. Every instruction has a mnemonic,
+// a condition (setcc/jcc), an explicit operand size (the suffix of
+// 'movq $1, -8(%rbp)', 0 when the registers tell the size) and up to 3
+// operands in AT&T order. An operand is packed in an int:
+//   kind (2 bits) | register size (4 bits) | register (5 bits) | symbol index
+// plus a long for its immediate or displacement. Labels and call/jump targets
+// are interned in 'symbols'.
+//
+// Passes can read and rewrite the stream in place (see replace/remove),
+// removed instructions are skipped by the Assembler and by writeAtt().
+//
+// A call can carry a stack map for the garbage collector (see CodeGen): the
+// record of its return address in the kite_gcmaps section.
+public class InstrBuffer {
+	public static final String GC_MAPS = "kite_gcmaps";
+
+	private static final int MAX_ARGS = 3;
+	private static final Operand.Kind[] KINDS = Operand.Kind.values();
+
+	public final String name;
+
+	private int count;
+	private Mnemonic[] ops = new Mnemonic[64];
+	private byte[] conds = new byte[64];
+	private byte[] sizes = new byte[64];
+	private byte[] argc = new byte[64];
+	private int[] args = new int[64 * MAX_ARGS];
+	private long[] values = new long[64 * MAX_ARGS];
+
+	private final List<String> symbols = new ArrayList<>();
+	private final Map<String, Integer> symbolIndex = new HashMap<>();
+	// call index -> %rbp offsets of the references of the frame
+	private final Map<Integer, int[]> stackMaps = new TreeMap<>();
+
+	public InstrBuffer(String name) {
+		this.name = name;
+	}
+
+	private int intern(String symbol) {
+		Integer i = symbolIndex.get(symbol);
+		if (i == null) {
+			i = symbols.size();
+			symbols.add(symbol);
+			symbolIndex.put(symbol, i);
+		}
+		return i;
+	}
+
+	private void grow() {
+		int n = ops.length * 2;
+		ops = Arrays.copyOf(ops, n);
+		conds = Arrays.copyOf(conds, n);
+		sizes = Arrays.copyOf(sizes, n);
+		argc = Arrays.copyOf(argc, n);
+		args = Arrays.copyOf(args, n * MAX_ARGS);
+		values = Arrays.copyOf(values, n * MAX_ARGS);
+	}
+
+	private void set(int i, Mnemonic op, int cond, int size, Operand... operands) {
+		if (operands.length > MAX_ARGS) throw new RuntimeException("Too many operands: " + op);
+		ops[i] = op;
+		conds[i] = (byte) cond;
+		sizes[i] = (byte) size;
+		argc[i] = (byte) operands.length;
+		for (int k = 0; k < operands.length; k++) {
+			Operand o = operands[k];
+			int symbol = o.symbol == null ? 0 : intern(o.symbol);
+			args[i * MAX_ARGS + k] = o.kind.ordinal() | o.size << 2 | (o.reg & 31) << 6 | symbol << 11;
+			values[i * MAX_ARGS + k] = o.value;
+		}
+	}
+
+	// appends an instruction, returns its index
+	public int add(Mnemonic op, int cond, int size, Operand... operands) {
+		if (count == ops.length) grow();
+		set(count, op, cond, size, operands);
+		return count++;
+	}
+
+	public int add(Mnemonic op, Operand... operands) {
+		return add(op, -1, 0, operands);
+	}
+
+	public int label(String label) {
+		return add(Mnemonic.LABEL, -1, 0, Operand.symbol(label));
+	}
+
+	// jmp (cond -1) or jcc to a label
+	public int jump(int cond, String label) {
+		return add(cond < 0 ? Mnemonic.JMP : Mnemonic.JCC, cond, 0, Operand.symbol(label));
+	}
+
+	public void stackMap(int call, int[] offsets) {
+		stackMaps.put(call, offsets);
+	}
+
+	// the stack map of instruction i, null if it has none
+	public int[] stackMap(int i) {
+		return stackMaps.get(i);
+	}
+
+	// the label after the call i that has a stack map: its return address
+	public String stackMapLabel(int i) {
+		return ".Lgc_" + name + "_" + i;
+	}
+
+	public void replace(int i, Mnemonic op, int cond, int size, Operand... operands) {
+		set(i, op, cond, size, operands);
+	}
+
+	public void remove(int i) {
+		ops[i] = null;
+	}
+
+	public boolean isRemoved(int i) {
+		return ops[i] == null;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public Mnemonic op(int i) {
+		return ops[i];
+	}
+
+	public int cond(int i) {
+		return conds[i];
+	}
+
+	public int opSize(int i) {
+		return sizes[i];
+	}
+
+	public int argc(int i) {
+		return argc[i];
+	}
+
+	public Operand.Kind kind(int i, int k) {
+		return KINDS[args[i * MAX_ARGS + k] & 3];
+	}
+
+	public Operand arg(int i, int k) {
+		int a = args[i * MAX_ARGS + k];
+		long value = values[i * MAX_ARGS + k];
+		int reg = a >> 6 & 31;
+		return switch (KINDS[a & 3]) {
+		case IMM -> Operand.imm(value);
+		case REG -> Operand.reg(reg, a >> 2 & 15);
+		case MEM -> Operand.mem(reg, value);
+		case SYMBOL -> Operand.symbol(symbols.get(a >>> 11));
+		};
+	}
+
+	// label of a LABEL, target of a jump or call
+	public String symbol(int i) {
+		return symbols.get(args[i * MAX_ARGS] >>> 11);
+	}
+
+	public Operand[] args(int i) {
+		Operand[] result = new Operand[argc[i]];
+		for (int k = 0; k < result.length; k++)
+			result[k] = arg(i, k);
+		return result;
+	}
+
+	private void appendArg(StringBuilder sb, int i, int k) {
+		int a = args[i * MAX_ARGS + k];
+		long value = values[i * MAX_ARGS + k];
+		int reg = a >> 6 & 31;
+		switch (KINDS[a & 3]) {
+		case IMM -> sb.append('$').append(value);
+		case REG -> sb.append(Operand.registerName(reg, a >> 2 & 15));
+		case MEM -> {
+			if (value != 0) sb.append(value);
+			sb.append('(').append(Operand.registerName(reg, 8)).append(')');
+		}
+		case SYMBOL -> sb.append(symbols.get(a >>> 11));
+		}
+	}
+
+	private static char suffix(int size) {
+		return switch (size) {
+		case 1 -> 'b';
+		case 2 -> 'w';
+		case 4 -> 'l';
+		default -> 'q';
+		};
+	}
+
+	// AT&T text of instruction i, without indentation or newline
+	public void appendAtt(StringBuilder sb, int i) {
+		Mnemonic op = ops[i];
+		sb.append(op.att);
+		if (op.hasCondition()) {
+			sb.append(Mnemonic.CONDITIONS[conds[i]]);
+		} else if (op == Mnemonic.MOVZX || op == Mnemonic.MOVSX) {
+			Operand.Kind srcKind = kind(i, 0);
+			int src = sizes[i] != 0 ? sizes[i] : srcKind == Operand.Kind.REG ? args[i * MAX_ARGS] >> 2 & 15 : 1;
+			sb.append(suffix(src)).append(suffix(args[i * MAX_ARGS + 1] >> 2 & 15));
+		} else if (sizes[i] != 0) {
+			sb.append(suffix(sizes[i]));
+		}
+		for (int k = 0; k < argc[i]; k++) {
+			sb.append(k == 0 ? ' ' : ',');
+			if (k > 0) sb.append(' ');
+			appendArg(sb, i, k);
+		}
+	}
+
+	// the function as assembly text
+	public void writeAtt(StringBuilder sb) {
+		sb.append(".globl ").append(name).append('\n');
+		sb.append(name).append(":\n");
+		for (int i = 0; i < count; i++) {
+			if (ops[i] == null) continue;
+			if (ops[i] == Mnemonic.LABEL) {
+				sb.append(symbol(i)).append(":\n");
+				continue;
+			}
+			sb.append("    ");
+			appendAtt(sb, i);
+			sb.append('\n');
+			if (stackMaps.containsKey(i)) sb.append(stackMapLabel(i)).append(":\n");
+		}
+		if (stackMaps.isEmpty()) return;
+
+		// a record per call: return address, number of offsets, offsets, padded to 8 bytes
+		sb.append(".section ").append(GC_MAPS).append(",\"a\"\n");
+		for (Map.Entry<Integer, int[]> e : stackMaps.entrySet()) {
+			int[] offsets = e.getValue();
+			sb.append("    .quad ").append(stackMapLabel(e.getKey())).append('\n');
+			sb.append("    .long ").append(offsets.length);
+			for (int offset : offsets)
+				sb.append(", ").append(offset);
+			sb.append("\n    .balign 8\n");
+		}
+		sb.append(".text\n");
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		writeAtt(sb);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,32 @@
+package compiler.asm;
+
+// Instructions CodeGen can emit. The ones ending in CC (setcc, jcc) take a
+// condition code (see CONDITIONS), MOVZX/MOVSX a source size.
+// LABEL is not an instruction, it marks a position in an InstrBuffer.
+public enum Mnemonic {
+	MOV("mov"), LEA("lea"), ADD("add"), AND("and"), SUB("sub"), CMP("cmp"), IMUL("imul"), SHL("shl"), SHR("shr"),
+	SAR("sar"), NEG("neg"), IDIV("idiv"), PUSH("push"), POP("pop"), CQO("cqo"), RET("ret"),
+	MOVZX("movz"), MOVSX("movs"), SETCC("set"), JCC("j"), JMP("jmp"), CALL("call"),
+	LABEL("");
+
+	// condition codes 0-15 in the order of the encoding (jo, jno, jb, jae, je...)
+	public static final String[] CONDITIONS = { "o", "no", "b", "ae", "e", "ne", "be", "a", "s", "ns", "p", "np", "l",
+			"ge", "le", "g" };
+	public static final int B = 2, AE = 3, E = 4, NE = 5, BE = 6, A = 7, L = 12, GE = 13, LE = 14, G = 15;
+
+	// AT&T name, without size suffix or condition
+	public final String att;
+
+	Mnemonic(String att) {
+		this.att = att;
+	}
+
+	public boolean hasCondition() {
+		return this == SETCC || this == JCC;
+	}
+
+	// instructions that leave the straight line: the next one may not run after them
+	public boolean isJump() {
+		return this == JMP || this == JCC || this == RET;
+	}
+}
@@ -0,0 +1,139 @@
+package compiler.asm;
+
+import java.util.*;
+
+// Operand of an x86-64 instruction, as written in AT&T syntax:
+// $5 (IMM), %rax (REG), -8(%rbp) (MEM) or a label/function name (SYMBOL).
+// 'size' is the width in bytes of a register (1, 2, 4 or 8), 0 for the others.
+public final class Operand {
+	public enum Kind {
+		IMM, REG, MEM, SYMBOL
+	}
+
+	private static final String[] REGS64 = { "rax", "rcx", "rdx", "rbx", "rsp", "rbp", "rsi", "rdi", "r8", "r9", "r10",
+			"r11", "r12", "r13", "r14", "r15" };
+	private static final String[] REGS32 = { "eax", "ecx", "edx", "ebx", "esp", "ebp", "esi", "edi", "r8d", "r9d",
+			"r10d", "r11d", "r12d", "r13d", "r14d", "r15d" };
+	private static final String[] REGS16 = { "ax", "cx", "dx", "bx", "sp", "bp", "si", "di", "r8w", "r9w", "r10w",
+			"r11w", "r12w", "r13w", "r14w", "r15w" };
+	private static final String[] REGS8 = { "al", "cl", "dl", "bl", "spl", "bpl", "sil", "dil", "r8b", "r9b", "r10b",
+			"r11b", "r12b", "r13b", "r14b", "r15b" };
+
+	// "rax" -> {0, 8}, "cl" -> {1, 1}, ...
+	private static final Map<String, int[]> REGISTERS = new HashMap<>();
+	// register operands are shared, REG_OPERANDS[size][reg]
+	private static final Operand[][] REG_OPERANDS = new Operand[9][16];
+	static {
+		for (int i = 0; i < 16; i++) {
+			REGISTERS.put(REGS64[i], new int[] { i, 8 });
+			REGISTERS.put(REGS32[i], new int[] { i, 4 });
+			REGISTERS.put(REGS16[i], new int[] { i, 2 });
+			REGISTERS.put(REGS8[i], new int[] { i, 1 });
+			for (int size : new int[] { 1, 2, 4, 8 })
+				REG_OPERANDS[size][i] = new Operand(Kind.REG, i, size, 0, null);
+		}
+	}
+
+	public static final Operand RAX = reg(0, 8), RCX = reg(1, 8), RDX = reg(2, 8), RBX = reg(3, 8), RSP = reg(4, 8),
+			RBP = reg(5, 8), RSI = reg(6, 8), RDI = reg(7, 8), R8 = reg(8, 8), R9 = reg(9, 8), R10 = reg(10, 8),
+			R11 = reg(11, 8), R12 = reg(12, 8), R13 = reg(13, 8), R14 = reg(14, 8), R15 = reg(15, 8);
+	public static final Operand AL = reg(0, 1), CL = reg(1, 1);
+
+	public final Kind kind;
+	// register number 0-15 (REG), or base register of a MEM
+	public final int reg;
+	public final int size;
+	// immediate (IMM) or displacement (MEM)
+	public final long value;
+	public final String symbol;
+
+	private Operand(Kind kind, int reg, int size, long value, String symbol) {
+		this.kind = kind;
+		this.reg = reg;
+		this.size = size;
+		this.value = value;
+		this.symbol = symbol;
+	}
+
+	public static Operand imm(long value) {
+		return new Operand(Kind.IMM, -1, 0, value, null);
+	}
+
+	public static Operand reg(int reg, int size) {
+		return REG_OPERANDS[size][reg];
+	}
+
+	public static Operand mem(int base, long disp) {
+		return new Operand(Kind.MEM, base, 0, disp, null);
+	}
+
+	public static Operand symbol(String name) {
+		return new Operand(Kind.SYMBOL, -1, 0, 0, name);
+	}
+
+	// "%rbx" -> the register (names of the register allocator)
+	public static Operand parse(String name) {
+		return reg(register(name), registerSize(name));
+	}
+
+	private static int[] lookup(String name) {
+		int[] r = REGISTERS.get(name.startsWith("%") ? name.substring(1) : name);
+		if (r == null) throw new RuntimeException("Unknown register: " + name);
+		return r;
+	}
+
+	public static int register(String name) {
+		return lookup(name)[0];
+	}
+
+	public static int registerSize(String name) {
+		return lookup(name)[1];
+	}
+
+	public static String registerName(int reg, int size) {
+		return "%" + switch (size) {
+		case 1 -> REGS8[reg];
+		case 2 -> REGS16[reg];
+		case 4 -> REGS32[reg];
+		default -> REGS64[reg];
+		};
+	}
+
+	public boolean isReg() {
+		return kind == Kind.REG;
+	}
+
+	public boolean isMem() {
+		return kind == Kind.MEM;
+	}
+
+	public boolean isImm() {
+		return kind == Kind.IMM;
+	}
+
+	// the same register with another width (%rax -> %al)
+	public Operand withSize(int size) {
+		return reg(reg, size);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof Operand other && kind == other.kind && reg == other.reg && size == other.size
+				&& value == other.value && Objects.equals(symbol, other.symbol);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(kind, reg, size, value, symbol);
+	}
+
+	@Override
+	public String toString() {
+		return switch (kind) {
+		case IMM -> "$" + value;
+		case REG -> registerName(reg, size);
+		case MEM -> (value == 0 ? "" : String.valueOf(value)) + "(" + registerName(reg, 8) + ")";
+		case SYMBOL -> symbol;
+		};
+	}
+}
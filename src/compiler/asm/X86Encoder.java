@@ -0,0 +1,252 @@
+package compiler.asm;
+
+import java.util.*;
+
+// Encodes x86-64 instructions, AT&T operand order (source first), to machine
+// code. Jumps and calls are encoded by the Assembler, that knows the labels.
+//
+// Operand size is explicit (the suffix of movq, cmpl, movb...) or comes from
+// the register operands, 64 bits by default. Layout of an instruction:
+// [0x66 for 16 bits] [REX] opcode [ModRM [SIB] [disp8/32]] [imm]
+public class X86Encoder {
+	// /n of the immediate forms of add/and/sub/cmp (the opcode of the register forms is n * 8 + 1)
+	private static final Map<Mnemonic, Integer> ALU = Map.of(Mnemonic.ADD, 0, Mnemonic.AND, 4, Mnemonic.SUB, 5,
+			Mnemonic.CMP, 7);
+	private static final Map<Mnemonic, Integer> SHIFTS = Map.of(Mnemonic.SHL, 4, Mnemonic.SHR, 5, Mnemonic.SAR, 7);
+	private static final Map<Mnemonic, Integer> UNARY = Map.of(Mnemonic.NEG, 3, Mnemonic.IDIV, 7);
+
+	private static boolean fits8(long v) {
+		return v >= -128 && v <= 127;
+	}
+
+	private static boolean fits32(long v) {
+		return v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE;
+	}
+
+	// spl, bpl, sil and dil only exist with a REX prefix (without it they are ah, ch, dh, bh)
+	private static boolean needsRex(Operand... ops) {
+		for (Operand op : ops) {
+			if (op.isReg() && op.size == 1 && op.reg >= 4 && op.reg <= 7) return true;
+		}
+		return false;
+	}
+
+	// prefixes, opcode and ModRM (+ SIB and displacement) for 'reg' and the register or memory 'rm'
+	private static void rm(CodeBuffer out, int size, int opcode, int reg, Operand rm, boolean forceRex) {
+		if (size == 2) out.put(0x66);
+		int rex = 0x40;
+		if (size == 8) rex |= 8;
+		if (reg > 7) rex |= 4;
+		if (rm.reg > 7) rex |= 1;
+		if (rex != 0x40 || forceRex) out.put(rex);
+		if (opcode > 0xFF) out.put(opcode >> 8);
+		out.put(opcode & 0xFF);
+
+		if (rm.isReg()) {
+			out.put(0xC0 | (reg & 7) << 3 | (rm.reg & 7));
+			return;
+		}
+		if (!rm.isMem()) throw new RuntimeException("Expected a register or memory operand: " + rm);
+		if (!fits32(rm.value)) throw new RuntimeException("Displacement too large: " + rm);
+
+		int base = rm.reg & 7;
+		int mod = rm.value == 0 && base != 5 ? 0 : fits8(rm.value) ? 1 : 2; // %rbp/%r13 always have a disp
+		out.put(mod << 6 | (reg & 7) << 3 | base);
+		if (base == 4) out.put(0x24); // %rsp/%r12 need a SIB byte
+		if (mod == 1) out.put((int) rm.value);
+		else if (mod == 2) out.putInt((int) rm.value);
+	}
+
+	private static void imm(CodeBuffer out, long value, int size) {
+		if (size == 1) out.put((int) value);
+		else if (size == 2) out.putShort((int) value);
+		else {
+			if (!fits32(value)) throw new RuntimeException("Immediate too large: " + value);
+			out.putInt((int) value);
+		}
+	}
+
+	// opcode + register in the low 3 bits (push, pop, mov $imm)
+	private static void opReg(CodeBuffer out, int size, int opcode, Operand reg) {
+		if (size == 2) out.put(0x66);
+		int rex = 0x40;
+		if (size == 8) rex |= 8;
+		if (reg.reg > 7) rex |= 1;
+		if (rex != 0x40 || needsRex(reg)) out.put(rex);
+		out.put(opcode + (reg.reg & 7));
+	}
+
+	private static void expect(Operand[] ops, int n, Mnemonic op) {
+		if (ops.length != n) throw new RuntimeException("Expected " + n + " operands: " + op);
+	}
+
+	// Appends the machine code of 'op ops' to 'out'. 'size' is the operand size
+	// (the source size for MOVZX/MOVSX), 0 to take it from the registers.
+	public void encode(Mnemonic op, int cond, int size, Operand[] ops, CodeBuffer out) {
+		Operand dst = ops.length > 0 ? ops[ops.length - 1] : null;
+		if (size == 0 && op != Mnemonic.MOVZX && op != Mnemonic.MOVSX) {
+			if (dst != null && dst.isReg()) size = dst.size;
+			else if (ops.length > 1 && ops[0].isReg()) size = ops[0].size;
+			else size = 8;
+		}
+
+		Integer n = ALU.get(op);
+		if (n != null) {
+			expect(ops, 2, op);
+			alu(n, size, ops[0], dst, out);
+			return;
+		}
+		n = SHIFTS.get(op);
+		if (n != null) {
+			shift(n, dst.isReg() ? dst.size : size, ops, out);
+			return;
+		}
+		n = UNARY.get(op);
+		if (n != null) {
+			expect(ops, 1, op);
+			rm(out, size, size == 1 ? 0xF6 : 0xF7, n, dst, needsRex(ops));
+			return;
+		}
+
+		switch (op) {
+		case RET -> out.put(0xC3);
+		case CQO -> {
+			out.put(0x48);
+			out.put(0x99);
+		}
+		case SETCC -> {
+			expect(ops, 1, op);
+			rm(out, 1, 0x0F90 + cond, 0, dst, needsRex(ops));
+		}
+		case MOVZX, MOVSX -> extend(op, size, ops, out);
+		case MOV -> {
+			expect(ops, 2, op);
+			mov(size, ops[0], dst, out);
+		}
+		case IMUL -> imul(size, ops, out);
+		case LEA -> {
+			expect(ops, 2, op);
+			rm(out, size, 0x8D, dst.reg, ops[0], false);
+		}
+		case PUSH -> {
+			expect(ops, 1, op);
+			if (dst.isImm()) {
+				out.put(fits8(dst.value) ? 0x6A : 0x68);
+				imm(out, dst.value, fits8(dst.value) ? 1 : 4);
+			} else {
+				opReg(out, 4, 0x50, dst); // 64 bits without REX.W
+			}
+		}
+		case POP -> {
+			expect(ops, 1, op);
+			opReg(out, 4, 0x58, dst);
+		}
+		default -> throw new RuntimeException("Not encoded here: " + op);
+		}
+	}
+
+	private static void alu(int n, int size, Operand src, Operand dst, CodeBuffer out) {
+		boolean rex = needsRex(src, dst);
+		if (src.isImm()) {
+			if (dst.isReg() && dst.reg == 0 && (size == 1 || !fits8(src.value))) {
+				// short form of %al, %ax, %eax and %rax, like gas
+				opReg(out, size, n * 8 + (size == 1 ? 4 : 5), dst);
+				imm(out, src.value, Math.min(size, 4));
+			} else if (size == 1) {
+				rm(out, size, 0x80, n, dst, rex);
+				imm(out, src.value, 1);
+			} else if (fits8(src.value)) {
+				rm(out, size, 0x83, n, dst, rex);
+				imm(out, src.value, 1);
+			} else {
+				rm(out, size, 0x81, n, dst, rex);
+				imm(out, src.value, Math.min(size, 4));
+			}
+		} else if (src.isReg()) {
+			rm(out, size, n * 8 + (size == 1 ? 0 : 1), src.reg, dst, rex);
+		} else if (dst.isReg()) {
+			rm(out, size, n * 8 + (size == 1 ? 2 : 3), dst.reg, src, rex);
+		} else {
+			throw new RuntimeException("Two memory operands: " + src + ", " + dst);
+		}
+	}
+
+	private static void mov(int size, Operand src, Operand dst, CodeBuffer out) {
+		boolean rex = needsRex(src, dst);
+		if (src.isReg()) {
+			rm(out, size, size == 1 ? 0x88 : 0x89, src.reg, dst, rex);
+		} else if (src.isMem()) {
+			if (!dst.isReg()) throw new RuntimeException("Two memory operands: " + src + ", " + dst);
+			rm(out, size, size == 1 ? 0x8A : 0x8B, dst.reg, src, rex);
+		} else if (src.isImm() && dst.isReg()) {
+			if (size == 8 && fits32(src.value)) {
+				rm(out, 8, 0xC7, 0, dst, false);
+				imm(out, src.value, 4);
+			} else if (size == 8) {
+				opReg(out, 8, 0xB8, dst); // movabs
+				out.putLong(src.value);
+			} else {
+				opReg(out, size, size == 1 ? 0xB0 : 0xB8, dst);
+				imm(out, src.value, size);
+			}
+		} else if (src.isImm()) {
+			rm(out, size, size == 1 ? 0xC6 : 0xC7, 0, dst, false);
+			imm(out, src.value, Math.min(size, 4));
+		} else {
+			throw new RuntimeException("Unsupported mov: " + src + ", " + dst);
+		}
+	}
+
+	private static void imul(int size, Operand[] ops, CodeBuffer out) {
+		if (ops.length == 1) {
+			rm(out, size, size == 1 ? 0xF6 : 0xF7, 5, ops[0], needsRex(ops));
+			return;
+		}
+		Operand dst = ops[ops.length - 1];
+		Operand src = ops.length == 3 ? ops[1] : ops[0];
+		if (ops[0].isImm()) {
+			// imul $imm, src, dst (src = dst in the two operands form)
+			if (ops.length == 2) src = dst;
+			boolean small = fits8(ops[0].value);
+			rm(out, size, small ? 0x6B : 0x69, dst.reg, src, false);
+			imm(out, ops[0].value, small ? 1 : Math.min(size, 4));
+		} else {
+			rm(out, size, 0x0FAF, dst.reg, src, false);
+		}
+	}
+
+	private static void shift(int n, int size, Operand[] ops, CodeBuffer out) {
+		Operand dst = ops[ops.length - 1];
+		boolean rex = needsRex(dst);
+		if (ops.length == 1 || (ops[0].isImm() && ops[0].value == 1)) {
+			rm(out, size, size == 1 ? 0xD0 : 0xD1, n, dst, rex);
+		} else if (ops[0].isImm()) {
+			rm(out, size, size == 1 ? 0xC0 : 0xC1, n, dst, rex);
+			out.put((int) ops[0].value);
+		} else if (ops[0].isReg() && ops[0].reg == 1 && ops[0].size == 1) {
+			rm(out, size, size == 1 ? 0xD2 : 0xD3, n, dst, rex);
+		} else {
+			throw new RuntimeException("Shift count must be an immediate or %cl: " + ops[0]);
+		}
+	}
+
+	// movzbq/movsbl/movslq...: the source is smaller than the destination register
+	private static void extend(Mnemonic op, int srcSize, Operand[] ops, CodeBuffer out) {
+		expect(ops, 2, op);
+		Operand src = ops[0], dst = ops[1];
+		if (!dst.isReg()) throw new RuntimeException("Destination of " + op + " must be a register");
+
+		if (srcSize == 0) srcSize = src.isReg() ? src.size : 1;
+		boolean signed = op == Mnemonic.MOVSX;
+		int opcode = switch (srcSize) {
+		case 1 -> signed ? 0x0FBE : 0x0FB6;
+		case 2 -> signed ? 0x0FBF : 0x0FB7;
+		case 4 -> {
+			if (!signed) throw new RuntimeException("Use a 32-bit mov to zero extend from 32 bits");
+			yield 0x63; // movslq
+		}
+		default -> throw new RuntimeException("Unsupported source size for " + op + ": " + srcSize);
+		};
+		rm(out, dst.size, opcode, dst.reg, src, needsRex(src));
+	}
+}
@@ -4,6 +4,7 @@ import java.util.*;
 
 import compiler.ast.stmt.*;
 import compiler.ast.var_def.*;
+import compiler.util.*;
 
 public class ClassDefNode extends Node {
 
@@ -13,6 +14,9 @@ public class ClassDefNode extends Node {
 	public Map<String, VarDeclNode> fields = new LinkedHashMap<>();
 	public Map<String, FuncDefNode> methods = new LinkedHashMap<>();
 
+	// computed once the field types are resolved, see Parser.parse()
+	public ClassLayout layout;
+
 	public ClassDefNode(ProgramNode prog, String name) {
 		this.name = name;
 		this.prog = prog;
@@ -10,6 +10,8 @@ public class ProgramNode extends Node {
 	public final Map<String, ClassDefNode> types = new LinkedHashMap<>();
 	public FuncDefNode main;
 	public String packageName = null;
+	// main is @WithGarbageCollector: set on every unit of the program
+	public boolean garbageCollected;
 
 	@Override
 	public String toString() {
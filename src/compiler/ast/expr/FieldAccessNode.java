@@ -1,12 +1,21 @@
 package compiler.ast.expr;
 
 import compiler.ast.core.*;
+import compiler.ast.var_def.*;
 
 // ex: the 'a.b.c' in assign 'a.b.c = 1'
 public class FieldAccessNode extends Node {
 	public Node target;
 	public String field;
 
+	// resolved once by Util.getFieldOffset(): offset of 'field' in its object,
+	// its declaration and, when the field is an inline object or a reference,
+	// its class
+	public int offset = -1;
+	public VarDeclNode decl;
+	public ClassDefNode typeClass;
+	public ClassDefNode refClass;
+
 	public FieldAccessNode(Node target, String field) {
 		this.target = target;
 		this.field = field;
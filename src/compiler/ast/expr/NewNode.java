@@ -0,0 +1,19 @@
+package compiler.ast.expr;
+
+import compiler.ast.core.*;
+
+// ex: 'new A()', an object on the heap (see IrBuilder), freed by 'delete'
+public class NewNode extends Node {
+	public String type;
+	// resolved by Parser.link() once all classes are known
+	public ClassDefNode clazz;
+
+	public NewNode(String type) {
+		this.type = type;
+	}
+
+	@Override
+	public String toString() {
+		return "NewNode (type=" + type + ")";
+	}
+}
@@ -53,10 +53,11 @@ public class BlockNode extends Node {
 				return decl;
 			}		
 		}
-		// parent block local
+		// parent block local (or parameter, for the function body)
 		BlockNode b = parentBlock;
 		while(b != null) {
 			decl = b.varLocals.get(var);
+			if (decl == null && b.fn != null) decl = b.fn.params.get(var);
 			if (decl != null) {
 				return decl;
 			}
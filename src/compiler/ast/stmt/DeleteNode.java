@@ -0,0 +1,17 @@
+package compiler.ast.stmt;
+
+import compiler.ast.core.Node;
+
+// ex: 'delete a;', gives the heap object of the reference 'a' back to the allocator
+public class DeleteNode extends Node {
+	public final Node expr;
+
+	public DeleteNode(Node expr) {
+		this.expr = expr;
+	}
+
+	@Override
+	public String toString() {
+		return "DeleteNode (expr=" + expr + ")";
+	}
+}
@@ -10,13 +10,16 @@ import java.util.List;
 public class FuncCallNode extends Node {
 	public VarDeclNode target;
 	public String name;
+	// name in the class, without the class prefix
+	public String method;
 	public List<Node> args = new ArrayList<>();
 	public BlockNode body;
 	
 	public FuncCallNode(BlockNode body, VarDeclNode target, String name) {
 		this.body = body;
 		this.target = target;
-		this.name = target.type + "_" +  name;		
+		this.name = target.type + "_" +  name;
+		this.method = name;		
 		this.args.add(new IdentNode(body, target));
 	}
 
@@ -4,16 +4,32 @@ import compiler.ast.core.ClassDefNode;
 import compiler.ast.core.Node;
 import compiler.ast.var_def.ParamFuncDefNode;
 import compiler.ast.var_def.VarDeclNode;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 // ex: int add(arg1, arg2, ...)
 public class FuncDefNode extends Node {
+	// a method without body, defined by the runtime (ex: '@Extern int heapSize();' of class gc is gc_heapSize)
+	public static final String EXTERN = "Extern";
+	// on main: 'new' allocates from the garbage collected heap (runtime/kite_gc.c)
+	public static final String WITH_GARBAGE_COLLECTOR = "WithGarbageCollector";
+	// ("logger") or ("logger", bytes): calls this.logger(size) for a sample of the objects the method allocates
+	public static final String CALL_METHOD_WHEN_ALLOC = "CallMethodWhenAlloc";
+
 	public String name;
 	public Map<String, VarDeclNode> params = new LinkedHashMap<>();
 	public String returnType;
 	public ClassDefNode clazz;
+	// null for an @Extern method
 	public BlockNode body;
+	// names written before the definition, ex: @Inline, @NoInline
+	public Set<String> annotations = new HashSet<>();
+	// the arguments of the annotations that have some: a String or an Integer each
+	public Map<String, List<Object>> annotationArgs = new HashMap<>();
 
 	public FuncDefNode(String returnType, String name) {		
 		this.returnType = returnType;
@@ -0,0 +1,124 @@
+package compiler.bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.function.*;
+
+import compiler.*;
+import compiler.asm.*;
+import compiler.ast.core.*;
+
+// Throughput and allocation of each compiler phase on a generated program, in
+// the JMH style: warmup iterations, then measured iterations of a fixed time.
+// Only the phase itself is timed, its input (the tokens for parse, the AST for
+// codegen, the instructions for assemble) is prepared again before every operation because the phases
+// consume or change it.
+//
+// Usage: java -cp bin compiler.bench.CompilerBenchmark [options] [phase...]
+//   phases: lex parse codegen assemble e2e (lex to object file), default all
+//   -classes N -methods N -statements N -depth N -loop N -expr N (SourceGenerator)
+//   -size KB       sets -classes for a source of about KB kilobytes
+//   -wi N -i N -time MS   warmup iterations, measured iterations, time of each
+public class CompilerBenchmark {
+
+	private record Phase(Function<String, Object> setup, Function<Object, Object> run) {
+	}
+
+	private record Iteration(double opsPerSec, double allocPerOp, double allocRate) {
+	}
+
+	private static final Map<String, Phase> PHASES = new LinkedHashMap<>();
+	static {
+		PHASES.put("lex", new Phase(source -> source, source -> Pipeline.lex((String) source)));
+		PHASES.put("parse", new Phase(Pipeline::lex, lexer -> Pipeline.parse((Lexer) lexer)));
+		PHASES.put("codegen", new Phase(source -> Pipeline.parse(Pipeline.lex(source)),
+				ast -> Pipeline.generate((ProgramNode) ast)));
+		PHASES.put("assemble", new Phase(source -> Pipeline.generate(Pipeline.parse(Pipeline.lex(source))),
+				CompilerBenchmark::assemble));
+		PHASES.put("e2e", new Phase(source -> source,
+				source -> Pipeline.assemble(Pipeline.generate(Pipeline.parse(Pipeline.lex((String) source))))));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object assemble(Object functions) {
+		return Pipeline.assemble((List<InstrBuffer>) functions);
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	// results go here so the JIT cannot drop the work
+	static volatile Object sink;
+
+	private static Iteration iteration(Phase phase, String source, long millis) {
+		long timed = 0, allocated = 0, ops = 0;
+		long budget = millis * 1_000_000;
+		while (timed < budget) {
+			Object input = phase.setup.apply(source);
+			long a0 = THREADS.getCurrentThreadAllocatedBytes();
+			long t0 = System.nanoTime();
+			sink = phase.run.apply(input);
+			long t1 = System.nanoTime();
+			allocated += THREADS.getCurrentThreadAllocatedBytes() - a0;
+			timed += t1 - t0;
+			ops++;
+		}
+		double seconds = timed / 1e9;
+		return new Iteration(ops / seconds, (double) allocated / ops, allocated / seconds);
+	}
+
+	public static void main(String[] args) {
+		SourceGenerator gen = new SourceGenerator();
+		int sizeKb = 0, warmups = 3, iterations = 5;
+		long millis = 1000;
+		List<String> selected = new ArrayList<>();
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-classes" -> gen.classes = Integer.parseInt(args[++i]);
+			case "-methods" -> gen.methods = Integer.parseInt(args[++i]);
+			case "-statements" -> gen.statements = Integer.parseInt(args[++i]);
+			case "-depth" -> gen.depth = Integer.parseInt(args[++i]);
+			case "-loop" -> gen.loopSize = Integer.parseInt(args[++i]);
+			case "-expr" -> gen.exprDepth = Integer.parseInt(args[++i]);
+			case "-size" -> sizeKb = Integer.parseInt(args[++i]);
+			case "-wi" -> warmups = Integer.parseInt(args[++i]);
+			case "-i" -> iterations = Integer.parseInt(args[++i]);
+			case "-time" -> millis = Long.parseLong(args[++i]);
+			default -> {
+				if (!PHASES.containsKey(args[i])) throw new RuntimeException("Unknown option or phase: " + args[i]);
+				selected.add(args[i]);
+			}
+			}
+		}
+		if (selected.isEmpty()) selected.addAll(PHASES.keySet());
+		if (sizeKb > 0) gen.withSize(sizeKb * 1024);
+
+		String source = gen.generate();
+		int tokens = Pipeline.lex(source).size();
+		System.out.printf("source: %d classes, %.1f KB, %d tokens%n", gen.classes, source.length() / 1024.0, tokens);
+		System.out.printf("%-8s %12s %10s %12s %12s %12s%n", "phase", "ops/s", "±", "tokens/s", "alloc B/op",
+				"alloc MB/s");
+
+		for (String name : selected) {
+			Phase phase = PHASES.get(name);
+			for (int i = 0; i < warmups; i++)
+				iteration(phase, source, millis);
+
+			double[] ops = new double[iterations];
+			double allocPerOp = 0, allocRate = 0;
+			for (int i = 0; i < iterations; i++) {
+				Iteration it = iteration(phase, source, millis);
+				ops[i] = it.opsPerSec;
+				allocPerOp += it.allocPerOp / iterations;
+				allocRate += it.allocRate / iterations;
+			}
+
+			double mean = Arrays.stream(ops).average().orElse(0);
+			double var = Arrays.stream(ops).map(o -> (o - mean) * (o - mean)).sum() / Math.max(1, iterations - 1);
+			System.out.printf("%-8s %12.2f %10.2f %12.0f %12.0f %12.1f%n", name, mean, Math.sqrt(var), mean * tokens,
+					allocPerOp, allocRate / (1024 * 1024));
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package compiler.bench;
+
+import java.util.*;
+
+// Generates synthetic (valid) Kite programs for the benchmarks, deterministic
+// for a given seed:
+// - 'depth' levels of inline objects, Nest0 { int x; int y; } up to
+//   NestN { NestN-1 a; NestN-1 b; int w; } (like Rect { Coord min; Coord max; })
+// - 'classes' classes with a NestN field and 'methods' methods each
+// - every method has 'statements' statements: assignments of expressions
+//   'exprDepth' deep, if/else, field accesses through the nested objects and
+//   while loops with 'loopSize' statements in their body
+public class SourceGenerator {
+	public int classes = 10;
+	public int methods = 5;
+	public int statements = 10;
+	public int depth = 2;
+	public int loopSize = 2;
+	public int exprDepth = 3;
+	public long seed = 42;
+
+	private Random random;
+	private StringBuilder out;
+
+	// classes enough to reach about 'bytes' characters of source
+	public static String ofSize(int bytes) {
+		SourceGenerator gen = new SourceGenerator();
+		return gen.withSize(bytes).generate();
+	}
+
+	// sets 'classes' so the program has about 'bytes' characters
+	public SourceGenerator withSize(int bytes) {
+		classes = 2;
+		int two = generate().length();
+		classes = 1;
+		int one = two - generate().length();
+		classes = Math.max(1, bytes / one);
+		return this;
+	}
+
+	public String generate() {
+		random = new Random(seed);
+		out = new StringBuilder();
+
+		out.append("class Nest0 {\n    int x;\n    int y;\n}\n\n");
+		for (int d = 1; d <= depth; d++) {
+			out.append("class Nest").append(d).append(" {\n");
+			out.append("    Nest").append(d - 1).append(" a;\n");
+			out.append("    Nest").append(d - 1).append(" b;\n");
+			out.append("    int w;\n}\n\n");
+		}
+
+		for (int c = 0; c < classes; c++)
+			genClass(c);
+
+		out.append("int main() {\n");
+		out.append("    C0 c;\n");
+		out.append("    return c.m0(3, 4) - c.m0(3, 4);\n");
+		out.append("}\n");
+		return out.toString();
+	}
+
+	private void genClass(int c) {
+		out.append("// generated class ").append(c).append('\n');
+		out.append("class C").append(c).append(" {\n");
+		out.append("    int count;\n");
+		out.append("    Nest").append(depth).append(" shape;\n\n");
+		for (int m = 0; m < methods; m++)
+			genMethod(m);
+		out.append("}\n\n");
+	}
+
+	private void genMethod(int m) {
+		out.append("    int m").append(m).append("(int a, int b) {\n");
+		out.append("        int x = a + ").append(random.nextInt(100)).append(";\n");
+		out.append("        int y = b * 2;\n");
+		for (int s = 0; s < statements; s++) {
+			switch (random.nextInt(5)) {
+			case 0 -> out.append("        x = ").append(expr(exprDepth)).append(";\n");
+			case 1 -> {
+				out.append("        if (x > y && y != ").append(random.nextInt(10)).append(") {\n");
+				out.append("            y = ").append(expr(exprDepth - 1)).append(";\n");
+				out.append("        } else {\n");
+				out.append("            x = x - 1; /* keep going */\n");
+				out.append("        }\n");
+			}
+			case 2 -> {
+				String i = "n" + s; // not "i8", "i16"...: type names
+				out.append("        int ").append(i).append(" = 0;\n");
+				out.append("        while (").append(i).append(" < 10) {\n");
+				for (int k = 0; k < loopSize; k++)
+					out.append("            y = y + ").append(expr(1)).append(";\n");
+				out.append("            ").append(i).append(" = ").append(i).append(" + 1;\n");
+				out.append("        }\n");
+			}
+			case 3 -> {
+				String field = path();
+				out.append("        ").append(field).append(" = x;\n");
+				out.append("        y = y + ").append(field).append(";\n");
+			}
+			default -> out.append("        y = ").append(expr(exprDepth)).append("; // update y\n");
+			}
+		}
+		out.append("        return x + y;\n");
+		out.append("    }\n\n");
+	}
+
+	// a random int field through all the levels, ex: this.shape.a.b.x
+	private String path() {
+		StringBuilder sb = new StringBuilder("this.shape");
+		for (int d = 0; d < depth; d++)
+			sb.append(random.nextBoolean() ? ".a" : ".b");
+		sb.append(random.nextBoolean() ? ".x" : ".y");
+		return sb.toString();
+	}
+
+	private String expr(int depth) {
+		if (depth <= 0) {
+			return switch (random.nextInt(3)) {
+			case 0 -> "x";
+			case 1 -> "y";
+			default -> String.valueOf(random.nextInt(1000));
+			};
+		}
+		String op = switch (random.nextInt(3)) {
+		case 0 -> " + ";
+		case 1 -> " - ";
+		default -> " * ";
+		};
+		return "(" + expr(depth - 1) + op + expr(depth - 1) + ")";
+	}
+}
@@ -0,0 +1,39 @@
+package compiler.ir;
+
+import java.util.*;
+
+// Straight-line instructions ending in a terminator (JMP, BR, RET or TAIL). PHIs come first.
+public class BasicBlock {
+	public final int id;
+	public final List<Instr> instrs = new ArrayList<>();
+	public final List<BasicBlock> preds = new ArrayList<>();
+
+	public BasicBlock(int id) {
+		this.id = id;
+	}
+
+	public List<Instr> phis() {
+		List<Instr> phis = new ArrayList<>();
+		for (Instr instr : instrs) {
+			if (instr.op != Opcode.PHI) break;
+			phis.add(instr);
+		}
+		return phis;
+	}
+
+	public List<BasicBlock> succs() {
+		Instr t = terminator();
+		return t == null ? List.of() : t.targets;
+	}
+
+	public Instr terminator() {
+		if (instrs.isEmpty()) return null;
+		Instr last = instrs.get(instrs.size() - 1);
+		return last.op.isTerminator() ? last : null;
+	}
+
+	@Override
+	public String toString() {
+		return "b" + id;
+	}
+}
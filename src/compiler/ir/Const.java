@@ -0,0 +1,15 @@
+package compiler.ir;
+
+public class Const extends Value {
+	public final long value;
+
+	public Const(long value) {
+		super(IrType.I64);
+		this.value = value;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(value);
+	}
+}
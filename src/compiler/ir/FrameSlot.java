@@ -0,0 +1,30 @@
+package compiler.ir;
+
+import compiler.ast.stmt.*;
+
+// stack memory of an inline object (ex: 'Rect r;'), addressed by a SLOT instruction
+public class FrameSlot {
+	public final String name;
+	public final int size;
+
+	// block that declares the object, null for the whole function.
+	// Slots of blocks that are not nested in each other share stack space.
+	public final BlockNode scope;
+
+	// offsets of the references in the object (ClassLayout.pointers), roots of the garbage collector
+	public int[] pointers = new int[0];
+
+	// offset from %rbp, assigned by the backend
+	public int offset;
+
+	public FrameSlot(String name, int size, BlockNode scope) {
+		this.name = name;
+		this.size = size;
+		this.scope = scope;
+	}
+
+	@Override
+	public String toString() {
+		return "FrameSlot (name=" + name + ", size=" + size + ")";
+	}
+}
@@ -0,0 +1,62 @@
+package compiler.ir;
+
+import java.util.*;
+
+// An instruction. When it produces a value it is also the virtual register
+// holding that value (%v<id>); every virtual register is assigned exactly once.
+public class Instr extends Value {
+	public Opcode op;
+	public final List<Value> args = new ArrayList<>();
+	public final List<BasicBlock> targets = new ArrayList<>();
+	public BasicBlock block;
+	public int id;
+
+	public int index; // PARAM
+	public int offset; // LOAD, STORE
+	public int size = 8; // LOAD, STORE, SEXT, ZEXT: bytes
+	public boolean unsigned; // LOAD
+	public String callee; // CALL, TAIL
+	public FrameSlot slot; // SLOT
+
+	public Instr(Opcode op, IrType type, Value... args) {
+		super(type);
+		this.op = op;
+		this.args.addAll(List.of(args));
+	}
+
+	public boolean hasResult() {
+		return type != IrType.VOID;
+	}
+
+	@Override
+	public String toString() {
+		return "%v" + id;
+	}
+
+	public String toLongString() {
+		StringBuilder sb = new StringBuilder("    ");
+		if (hasResult()) sb.append(this).append(": ").append(type).append(" = ");
+		sb.append(op);
+		switch (op) {
+		case PARAM -> sb.append(" ").append(index);
+		case SLOT -> sb.append(" ").append(slot.name).append("[").append(slot.size).append("]");
+		case CALL, TAIL -> sb.append(" ").append(callee);
+		case LOAD, STORE -> {
+			sb.append(" +").append(offset);
+			if (size != 8) sb.append(unsigned ? " u" : " i").append(size * 8);
+		}
+		case SEXT, ZEXT -> sb.append(" ").append(size * 8);
+		default -> {
+		}
+		}
+		for (int i = 0; i < args.size(); i++) {
+			sb.append(i == 0 ? " " : ", ");
+			if (op == Opcode.PHI) sb.append("[").append(block.preds.get(i)).append(": ");
+			sb.append(args.get(i));
+			if (op == Opcode.PHI) sb.append("]");
+		}
+		for (BasicBlock target : targets)
+			sb.append(" -> ").append(target);
+		return sb.toString();
+	}
+}
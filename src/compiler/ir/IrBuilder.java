@@ -0,0 +1,627 @@
+package compiler.ir;
+
+import java.util.*;
+
+import compiler.*;
+import compiler.ast.core.*;
+import compiler.ast.expr.*;
+import compiler.ast.stmt.*;
+import compiler.ast.var_def.*;
+import compiler.opt.*;
+import compiler.util.*;
+
+// Lowers a FuncDefNode to SSA form. 'if' and 'while' become CFG edges, && and ||
+// become short-circuit branches joined by a PHI. As the condition of an 'if'
+// or a 'while', && || and ! need no value at all: every comparison branches
+// straight to the then/else block (see lowerCond).
+//
+// SSA is built on the fly with the algorithm of Braun et al., "Simple and
+// Efficient Construction of Static Single Assignment Form": a variable read
+// looks for its definition in the current block, then in the predecessors,
+// placing PHIs where definitions meet. A block is "sealed" once all its
+// predecessors are known; reads in unsealed blocks (loop headers) get an
+// incomplete PHI that is filled when the block is sealed.
+//
+// With an Inliner, a call it picks is replaced by the callee's body: the
+// parameters are bound to the argument values (so 'this' is the receiver) and
+// every 'return' jumps to the block after the call, where a PHI joins the
+// returned values. The callee's variables are distinct VarDeclNodes, so they
+// need no renaming.
+//
+// 'new A()' calls the allocator of the runtime (runtime/kite_alloc.c), that
+// returns zeroed memory, and 'delete' gives the object back with its size.
+// A reference is the address of its object, like an inline object.
+//
+// In a garbage collected program (@WithGarbageCollector, runtime/kite_gc.c)
+// 'new' also passes the pointer map of the class, main starts by telling the
+// collector where the stack ends, and the inline objects of a function each
+// get their own stack space: CodeGen clears their references once and lists
+// them in the stack map of every call.
+//
+// In a @CallMethodWhenAlloc("logger", bytes) method, each 'new' of its body
+// takes its size off a per-thread countdown of the runtime, whose address the
+// method gets once on entry (like errno's). Only when it goes below zero, about
+// once per 'bytes' allocated, the countdown is reset and this.logger(size) is
+// called: the other allocations pay a load, a subtraction, a store and a branch.
+public class IrBuilder {
+	public static final String ALLOC = "__kite_alloc", FREE = "__kite_free";
+	public static final String GC_ALLOC = "__kite_gc_alloc", GC_FREE = "__kite_gc_free", GC_START = "__kite_gc_start";
+	public static final String ALLOC_COUNTDOWN = "__kite_alloc_countdown";
+	// default sampling period of @CallMethodWhenAlloc
+	public static final int SAMPLE_BYTES = 512 * 1024;
+
+	// field or variable address: base pointer + constant offset
+	private record Address(Value base, int offset) {
+	}
+
+	private IrFunction fn;
+	private FuncDefNode funcDef;
+	private BasicBlock current;
+	private final Map<Object, Map<BasicBlock, Value>> defs = new HashMap<>();
+	private final Map<Object, IrType> varTypes = new HashMap<>();
+	private final Map<BasicBlock, Map<Object, Instr>> incompletePhis = new HashMap<>();
+	private final Set<BasicBlock> sealed = new HashSet<>();
+
+	private final Inliner inliner;
+	private final boolean gc;
+	private int inlineDepth;
+	// while lowering an inlined body: the block after the call, and the value returned from each block
+	private BasicBlock returnBlock;
+	private Map<BasicBlock, Value> returnValues;
+	// @CallMethodWhenAlloc of the function: its logger, the sampling period and the countdown address
+	private FuncDefNode logger;
+	private int samplePeriod;
+	private Value countdown;
+
+	public IrBuilder() {
+		this(null);
+	}
+
+	public IrBuilder(Inliner inliner) {
+		this(inliner, false);
+	}
+
+	public IrBuilder(Inliner inliner, boolean gc) {
+		this.inliner = inliner;
+		this.gc = gc;
+	}
+
+	private Address addressOf(FieldAccessNode fa) {
+		int offset = Util.getFieldOffset(fa);
+		if (fa.target instanceof FieldAccessNode inner && inner.refClass != null) {
+			// a field of the object a reference field points to
+			return new Address(lowerExpr(inner), offset);
+		}
+		if (fa.target instanceof FieldAccessNode inner) {
+			Address base = addressOf(inner);
+			return new Address(base.base, base.offset + offset);
+		}
+		if (fa.target instanceof IdentNode ident) return new Address(readVariable(ident.varDecl, current), offset);
+		throw new RuntimeException("Unsupported FieldAccessNode target: " + fa.target);
+	}
+
+	private Value bool(Value v) {
+		if (v instanceof Instr instr && instr.op.isCompare()) return v;
+		if (v instanceof Const c) return new Const(c.value != 0 ? 1 : 0);
+		return emit(new Instr(Opcode.NE, IrType.I64, v, new Const(0)));
+	}
+
+	private void branch(Value cond, BasicBlock then, BasicBlock otherwise) {
+		Instr br = new Instr(Opcode.BR, IrType.VOID, cond);
+		br.targets.add(then);
+		br.targets.add(otherwise);
+		emit(br);
+		current = null;
+	}
+
+	private Instr emit(Instr instr) {
+		ensureBlock();
+		return fn.append(current, instr);
+	}
+
+	private void ensureBlock() {
+		if (current == null) {
+			// code after a 'return': a block without predecessors
+			BasicBlock unreachable = fn.newBlock();
+			seal(unreachable);
+			startBlock(unreachable);
+		}
+	}
+
+	private void initObject(Value base, int offset, ClassDefNode clazz) {
+		ClassLayout layout = ClassLayout.of(clazz);
+		if (layout.header == 0) return; // compact: nothing to initialize
+
+		// each inline object starts with its own fat pointer
+		Value self = offset == 0 ? base : emit(new Instr(Opcode.ADD, IrType.PTR, base, new Const(offset)));
+		store(base, offset, self);
+
+		for (int i = 0; i < layout.fields.length; i++) {
+			if (layout.inline[i]) initObject(base, offset + layout.offsets[i], layout.fields[i].typeClass);
+		}
+	}
+
+	private void jump(BasicBlock target) {
+		Instr jmp = new Instr(Opcode.JMP, IrType.VOID);
+		jmp.targets.add(target);
+		emit(jmp);
+		current = null;
+	}
+
+	private Value lowerExpr(Node node) {
+		if (node instanceof NumNode num) {
+			return new Const(num.value);
+
+		} else if (node instanceof NullNode) {
+			return new Const(0);
+
+		} else if (node instanceof IdentNode ident) {
+			return readVariable(ident.varDecl, current);
+
+		} else if (node instanceof NewNode nn) {
+			Instr alloc = new Instr(Opcode.CALL, IrType.PTR, new Const(Util.getClassSize(nn.clazz)));
+			alloc.callee = ALLOC;
+			if (gc) {
+				alloc.callee = GC_ALLOC;
+				alloc.args.add(new Const(pointerMap(nn.clazz)));
+			}
+			emit(alloc);
+			initObject(alloc, 0, nn.clazz);
+			if (countdown != null && inlineDepth == 0) sample(Util.getClassSize(nn.clazz));
+			return alloc;
+
+		} else if (node instanceof FieldAccessNode fa) {
+			Address addr = addressOf(fa);
+			if (fa.typeClass != null && ClassLayout.of(fa.typeClass).header == 0) {
+				// an inline object without fat pointer: its address
+				return emit(new Instr(Opcode.ADD, IrType.PTR, addr.base, new Const(addr.offset)));
+			}
+			// a reference, or the fat pointer of an inline object
+			boolean pointer = fa.refClass != null || fa.typeClass != null;
+			Instr load = new Instr(Opcode.LOAD, pointer ? IrType.PTR : IrType.I64, addr.base);
+			load.offset = addr.offset;
+			PrimitiveType type = PrimitiveType.of(fa.decl.type);
+			if (type != null) {
+				load.size = type.size;
+				load.unsigned = !type.signed;
+			}
+			return emit(load);
+
+		} else if (node instanceof BinOpNode bin) {
+			if (bin.op == Token.Kind.AND || bin.op == Token.Kind.OR) return lowerLogical(bin);
+
+			Value left = lowerExpr(bin.left);
+			Value right = lowerExpr(bin.right);
+			Opcode op = switch (bin.op) {
+			case PLUS -> Opcode.ADD;
+			case MINUS -> Opcode.SUB;
+			case MUL -> Opcode.MUL;
+			case DIV -> Opcode.DIV;
+			case MOD -> Opcode.MOD;
+			case SHL -> Opcode.SHL;
+			case EQ -> Opcode.EQ;
+			case NEQ -> Opcode.NE;
+			case LT -> Opcode.LT;
+			case GT -> Opcode.GT;
+			case LE -> Opcode.LE;
+			case GE -> Opcode.GE;
+			default -> throw new RuntimeException("Unsupported operator: " + bin.op);
+			};
+			return emit(new Instr(op, IrType.I64, left, right));
+
+		} else if (node instanceof UnaryOpNode uop) {
+			if (uop.op != Token.Kind.NOT) throw new RuntimeException("Unsupported unary operator: " + uop.op);
+			return emit(new Instr(Opcode.EQ, IrType.I64, lowerExpr(uop.expr), new Const(0)));
+
+		} else if (node instanceof AssignNode assign) {
+			Value value = lowerExpr(assign.value);
+
+			if (assign.target instanceof IdentNode ident) {
+				if (ident.varDecl.typeClass != null && !(ident.varDecl instanceof ParamFuncDefNode))
+					throw new RuntimeException("Cannot assign to inline object: " + ident.varDecl.name);
+				value = convert(value, ident.varDecl.type);
+				writeVariable(ident.varDecl, current, value);
+			} else if (assign.target instanceof FieldAccessNode fa) {
+				Address addr = addressOf(fa);
+				value = convert(value, fa.decl.type);
+				store(addr.base, addr.offset, value, Util.getFieldSize(fa.decl));
+			} else {
+				throw new RuntimeException("Invalid lvalue");
+			}
+			return value;
+
+		} else if (node instanceof FuncCallNode call) {
+			List<Value> args = new ArrayList<>();
+			for (Node arg : call.args)
+				args.add(lowerExpr(arg));
+			FuncDefNode callee = inliner == null ? null : inliner.callee(call.name, inlineDepth);
+			if (callee != null) return inline(callee, args);
+
+			ClassDefNode clazz = call.target.typeClass != null ? call.target.typeClass : call.target.refClass;
+			FuncDefNode method = clazz == null ? null : clazz.methods.get(call.method);
+			Instr instr = new Instr(Opcode.CALL, method == null ? IrType.I64 : typeOf(method.returnType));
+			instr.callee = call.name;
+			instr.args.addAll(args);
+			return emit(instr);
+		}
+
+		throw new RuntimeException("Unsupported node type: " + node.getClass().getSimpleName());
+	}
+
+	private Value inline(FuncDefNode callee, List<Value> args) {
+		ensureBlock();
+		int i = 0;
+		for (VarDeclNode param : callee.params.values())
+			writeVariable(param, current, convert(args.get(i++), param.type));
+
+		FuncDefNode caller = funcDef;
+		BasicBlock callerReturn = returnBlock;
+		Map<BasicBlock, Value> callerValues = returnValues;
+		BasicBlock exit = fn.newBlock();
+		Map<BasicBlock, Value> values = new HashMap<>();
+		funcDef = callee;
+		returnBlock = exit;
+		returnValues = values;
+		inlineDepth++;
+
+		lowerStmt(callee.body);
+		if (current != null) {
+			values.put(current, new Const(0)); // end of a void method
+			jump(exit);
+		}
+
+		inlineDepth--;
+		funcDef = caller;
+		returnBlock = callerReturn;
+		returnValues = callerValues;
+
+		seal(exit);
+		startBlock(exit);
+		if (exit.preds.isEmpty()) return new Const(0); // the body never returns
+		if (exit.preds.size() == 1) return values.get(exit.preds.get(0));
+		Instr phi = newPhi(exit, typeOf(callee.returnType));
+		for (BasicBlock pred : exit.preds)
+			phi.args.add(values.get(pred));
+		return phi;
+	}
+
+	private Value lowerLogical(BinOpNode bin) {
+		boolean isAnd = bin.op == Token.Kind.AND;
+		Value left = bool(lowerExpr(bin.left));
+		BasicBlock leftEnd = current;
+		BasicBlock rhs = fn.newBlock();
+		BasicBlock merge = fn.newBlock();
+
+		if (isAnd) branch(left, rhs, merge);
+		else branch(left, merge, rhs);
+
+		seal(rhs);
+		startBlock(rhs);
+		Value right = bool(lowerExpr(bin.right));
+		jump(merge);
+
+		seal(merge);
+		startBlock(merge);
+		Instr phi = newPhi(merge, IrType.I64);
+		for (BasicBlock pred : merge.preds)
+			phi.args.add(pred == leftEnd ? new Const(isAnd ? 0 : 1) : right);
+		return phi;
+	}
+
+	// Branches to 'then' if 'cond' is true, else to 'otherwise':
+	// a && b -> if (!a) goto otherwise; if (b) goto then; goto otherwise
+	private void lowerCond(Node cond, BasicBlock then, BasicBlock otherwise) {
+		if (cond instanceof BinOpNode bin && (bin.op == Token.Kind.AND || bin.op == Token.Kind.OR)) {
+			BasicBlock rhs = fn.newBlock();
+			if (bin.op == Token.Kind.AND) lowerCond(bin.left, rhs, otherwise);
+			else lowerCond(bin.left, then, rhs);
+			seal(rhs);
+			startBlock(rhs);
+			lowerCond(bin.right, then, otherwise);
+		} else if (cond instanceof UnaryOpNode uop && uop.op == Token.Kind.NOT) {
+			lowerCond(uop.expr, otherwise, then);
+		} else {
+			branch(bool(lowerExpr(cond)), then, otherwise);
+		}
+	}
+
+	private void lowerStmt(Node node) {
+		ensureBlock(); // a statement after a 'return' reads its variables in a block of its own
+		if (node instanceof BlockNode block) {
+			for (Node stmt : block.statements)
+				lowerStmt(stmt);
+
+		} else if (node instanceof LocalVarDeclNode decl) {
+			ClassDefNode clazz = decl.typeClass;
+
+			if (clazz != null) {
+				// the blocks of an inlined body are not nested in the caller's: no stack sharing for its objects
+				// with the collector, no stack sharing: the references of a slot are roots in the whole function
+				BlockNode scope = inlineDepth > 0 || gc ? null : decl.block;
+				FrameSlot slot = new FrameSlot(decl.name, Util.getClassSize(clazz), scope);
+				slot.pointers = ClassLayout.of(clazz).pointers;
+				fn.slots.add(slot);
+				Instr addr = new Instr(Opcode.SLOT, IrType.PTR);
+				addr.slot = slot;
+				emit(addr);
+				initObject(addr, 0, clazz);
+				writeVariable(decl, current, addr);
+			} else {
+				// int, bool etc.
+				Value value = decl.value != null ? convert(lowerExpr(decl.value), decl.type) : new Const(0);
+				writeVariable(decl, current, value);
+			}
+
+		} else if (node instanceof ReturnNode ret) {
+			if (ret.expr != null && funcDef.returnType.equals("void"))
+				throw new RuntimeException("Cannot return a value from a void function");
+			if (ret.expr == null && !funcDef.returnType.equals("void"))
+				throw new RuntimeException("Must return a value from a non-void function");
+
+			if (returnBlock != null) {
+				Value value = ret.expr != null ? convert(lowerExpr(ret.expr), funcDef.returnType) : new Const(0);
+				ensureBlock();
+				returnValues.put(current, value);
+				jump(returnBlock);
+				return;
+			}
+
+			Instr instr = new Instr(Opcode.RET, IrType.VOID);
+			if (ret.expr != null) instr.args.add(convert(lowerExpr(ret.expr), funcDef.returnType));
+			emit(instr);
+			current = null;
+
+		} else if (node instanceof DeleteNode del) {
+			// a reference, or a parameter (that may hold one)
+			ClassDefNode clazz = Util.resolveClassOfFieldAccess(del.expr);
+			boolean reference = del.expr instanceof FieldAccessNode fa ? fa.refClass != null
+					: ((IdentNode) del.expr).varDecl.refClass != null || ((IdentNode) del.expr).varDecl instanceof ParamFuncDefNode;
+			if (clazz == null || !reference) throw new RuntimeException("Cannot delete: " + del.expr);
+			Instr free = new Instr(Opcode.CALL, IrType.VOID, lowerExpr(del.expr), new Const(Util.getClassSize(clazz)));
+			free.callee = gc ? GC_FREE : FREE;
+			emit(free);
+
+		} else if (node instanceof IfNode ifn) {
+			BasicBlock then = fn.newBlock();
+			BasicBlock end = fn.newBlock();
+			BasicBlock otherwise = ifn.elseBranch != null ? fn.newBlock() : end;
+			lowerCond(ifn.cond, then, otherwise);
+
+			seal(then);
+			startBlock(then);
+			lowerStmt(ifn.thenBranch);
+			if (current != null) jump(end);
+
+			// Else or Else-If
+			if (ifn.elseBranch != null) {
+				seal(otherwise);
+				startBlock(otherwise);
+				lowerStmt(ifn.elseBranch);
+				if (current != null) jump(end);
+			}
+
+			seal(end);
+			startBlock(end);
+
+		} else if (node instanceof WhileNode wn) {
+			BasicBlock header = fn.newBlock();
+			jump(header);
+			startBlock(header); // sealed after the back edge
+
+			BasicBlock body = fn.newBlock();
+			BasicBlock exit = fn.newBlock();
+			lowerCond(wn.cond, body, exit);
+
+			seal(body);
+			startBlock(body);
+			lowerStmt(wn.body);
+			if (current != null) jump(header);
+
+			seal(header);
+			seal(exit);
+			startBlock(exit);
+
+		} else {
+			lowerExpr(node);
+		}
+	}
+
+	private Instr newPhi(BasicBlock block, IrType type) {
+		return fn.insert(block, block.phis().size(), new Instr(Opcode.PHI, type));
+	}
+
+	private Value readVariable(Object var, BasicBlock block) {
+		Value value = defs.getOrDefault(var, Map.of()).get(block);
+		if (value != null) return value;
+
+		if (!sealed.contains(block)) {
+			Instr phi = newPhi(block, varTypes.getOrDefault(var, IrType.I64));
+			incompletePhis.computeIfAbsent(block, k -> new LinkedHashMap<>()).put(var, phi);
+			value = phi;
+		} else if (block.preds.size() == 1) {
+			value = readVariable(var, block.preds.get(0));
+		} else if (block.preds.isEmpty()) {
+			value = new Const(0); // read before any assignment
+		} else {
+			Instr phi = newPhi(block, varTypes.getOrDefault(var, IrType.I64));
+			writeVariable(var, block, phi); // breaks cycles through loops
+			for (BasicBlock pred : block.preds)
+				phi.args.add(readVariable(var, pred));
+			value = phi;
+		}
+
+		writeVariable(var, block, value);
+		return value;
+	}
+
+	// PHIs whose operands are all the same value (or itself) are replaced by that
+	// value, PHIs nobody reads are dropped. Repeats until nothing changes, since
+	// removing a PHI can make the PHIs that used it trivial too.
+	private void removeTrivialPhis() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Map<Value, Integer> uses = fn.useCounts();
+
+			search: for (BasicBlock block : fn.blocks) {
+				for (Instr phi : block.phis()) {
+					Value same = null;
+					boolean trivial = true;
+					for (Value arg : phi.args) {
+						if (arg == phi || arg == same) continue;
+						if (same != null) trivial = false;
+						same = arg;
+					}
+					if (trivial) fn.replaceAllUses(phi, same != null ? same : new Const(0));
+					if (trivial || uses.getOrDefault(phi, 0) == 0) {
+						block.instrs.remove(phi);
+						changed = true;
+						break search;
+					}
+				}
+			}
+		}
+	}
+
+	// countdown -= size; if (countdown < 0) { countdown += period; this.logger(size); }
+	private void sample(int size) {
+		Instr left = new Instr(Opcode.LOAD, IrType.I64, countdown);
+		Value rest = emit(new Instr(Opcode.SUB, IrType.I64, emit(left), new Const(size)));
+		store(countdown, 0, rest);
+		BasicBlock sampled = fn.newBlock();
+		BasicBlock done = fn.newBlock();
+		branch(emit(new Instr(Opcode.LT, IrType.I64, rest, new Const(0))), sampled, done);
+
+		seal(sampled);
+		startBlock(sampled);
+		store(countdown, 0, emit(new Instr(Opcode.ADD, IrType.I64, rest, new Const(samplePeriod))));
+		Instr call = new Instr(Opcode.CALL, typeOf(logger.returnType), readVariable(funcDef.params.get("this"), current),
+				new Const(size));
+		call.callee = logger.name;
+		emit(call);
+		jump(done);
+
+		seal(done);
+		startBlock(done);
+	}
+
+	// @CallMethodWhenAlloc("logger") or ("logger", bytes): checks the logger, gets the countdown address
+	private void startSampling(FuncDefNode node) {
+		logger = null;
+		countdown = null;
+		if (!node.annotations.contains(FuncDefNode.CALL_METHOD_WHEN_ALLOC)) return;
+		List<Object> args = node.annotationArgs.get(FuncDefNode.CALL_METHOD_WHEN_ALLOC);
+		if (node.clazz == null) throw new RuntimeException("@CallMethodWhenAlloc is for methods: the logger is called on 'this'");
+		if (args == null || args.size() > 2 || !(args.get(0) instanceof String name)
+				|| (args.size() == 2 && !(args.get(1) instanceof Integer)))
+			throw new RuntimeException("Expected @CallMethodWhenAlloc(\"logger\") or @CallMethodWhenAlloc(\"logger\", bytes): " + node.name);
+		logger = node.clazz.methods.get(name);
+		List<VarDeclNode> params = logger == null ? List.of() : new ArrayList<>(logger.params.values());
+		if (params.size() != 2 || PrimitiveType.of(params.get(1).type) == null)
+			throw new RuntimeException("@CallMethodWhenAlloc: no method " + name + "(int bytes) in class " + node.clazz.name);
+		samplePeriod = args.size() == 2 ? (Integer) args.get(1) : SAMPLE_BYTES;
+		if (samplePeriod <= 0) throw new RuntimeException("@CallMethodWhenAlloc: the sampling period must be positive: " + node.name);
+
+		Instr addr = new Instr(Opcode.CALL, IrType.I64);
+		addr.callee = ALLOC_COUNTDOWN;
+		countdown = emit(addr);
+		fn.prologue.add(addr);
+	}
+
+	private void seal(BasicBlock block) {
+		Map<Object, Instr> phis = incompletePhis.remove(block);
+		if (phis != null) {
+			for (Map.Entry<Object, Instr> e : phis.entrySet()) {
+				for (BasicBlock pred : block.preds)
+					e.getValue().args.add(readVariable(e.getKey(), pred));
+			}
+		}
+		sealed.add(block);
+	}
+
+	private void startBlock(BasicBlock block) {
+		fn.blocks.add(block);
+		current = block;
+	}
+
+	private void store(Value base, int offset, Value value) {
+		store(base, offset, value, 8);
+	}
+
+	private void store(Value base, int offset, Value value, int size) {
+		Instr store = new Instr(Opcode.STORE, IrType.VOID, base, value);
+		store.offset = offset;
+		store.size = size;
+		emit(store);
+	}
+
+	// 'value' brought to the range of 'type' (see PrimitiveType): written to a
+	// variable, field, parameter or return value of that type
+	private Value convert(Value value, String type) {
+		PrimitiveType t = PrimitiveType.of(type);
+		if (t == null || t.size == 8) return value;
+		if (t == PrimitiveType.BOOL) return bool(value);
+		if (value instanceof Const c) return new Const(t.convert(c.value));
+		Instr ext = new Instr(t.signed ? Opcode.SEXT : Opcode.ZEXT, IrType.I64, value);
+		ext.size = t.size;
+		return emit(ext);
+	}
+
+	// the bits of the words of a 'new' object that hold a reference, for the collector
+	private static long pointerMap(ClassDefNode clazz) {
+		long map = 0;
+		for (int offset : ClassLayout.of(clazz).pointers) {
+			if (offset / 8 >= 64)
+				throw new RuntimeException("Reference after the 64th word of class " + clazz.name + ": not supported by the garbage collector");
+			map |= 1L << offset / 8;
+		}
+		return map;
+	}
+
+	// of a value of a declared type (ex: a return type): PTR for a class
+	private static IrType typeOf(String type) {
+		return type.equals("void") || PrimitiveType.of(type) != null ? IrType.I64 : IrType.PTR;
+	}
+
+	private static IrType typeOf(VarDeclNode var) {
+		return var.typeClass != null || var.refClass != null ? IrType.PTR : IrType.I64;
+	}
+
+	private void writeVariable(Object var, BasicBlock block, Value value) {
+		if (var instanceof VarDeclNode decl) varTypes.putIfAbsent(var, typeOf(decl));
+		defs.computeIfAbsent(var, k -> new HashMap<>()).put(block, value);
+	}
+
+	public IrFunction build(FuncDefNode node) {
+		funcDef = node;
+		fn = new IrFunction(node.name, node.returnType.equals("void") ? IrType.VOID : IrType.I64);
+
+		BasicBlock entry = fn.newBlock();
+		seal(entry);
+		startBlock(entry);
+
+		// the PARAMs first, then their conversions
+		int i = 0;
+		for (VarDeclNode param : node.params.values()) {
+			Instr p = emit(new Instr(Opcode.PARAM, typeOf(param)));
+			p.index = i++;
+			fn.params.add(p);
+		}
+		i = 0;
+		for (VarDeclNode param : node.params.values())
+			writeVariable(param, current, convert(fn.params.get(i++), param.type));
+		if (gc && node.clazz == null) {
+			// main: the frames the collector walks end here
+			Instr start = new Instr(Opcode.CALL, IrType.VOID);
+			start.callee = GC_START;
+			fn.prologue.add(emit(start));
+		}
+		startSampling(node);
+
+		lowerStmt(node.body);
+		if (current != null) emit(new Instr(Opcode.RET, IrType.VOID));
+
+		removeTrivialPhis();
+		return fn;
+	}
+}
@@ -0,0 +1,101 @@
+package compiler.ir;
+
+import java.util.*;
+
+// SSA form of a FuncDefNode: a control flow graph of basic blocks, blocks.get(0) is the entry
+public class IrFunction {
+	public final String name;
+	public final IrType returnType;
+	public final List<Instr> params = new ArrayList<>();
+	// instructions of the entry block, after the PARAMs, that run once per call
+	// even when TailCalls turns the self calls into a loop
+	public final List<Instr> prologue = new ArrayList<>();
+	public final List<BasicBlock> blocks = new ArrayList<>();
+	public final List<FrameSlot> slots = new ArrayList<>();
+	private int nextId = 0;
+	private int nextBlockId = 0;
+
+	public IrFunction(String name, IrType returnType) {
+		this.name = name;
+		this.returnType = returnType;
+	}
+
+	public Instr append(BasicBlock block, Instr instr) {
+		return insert(block, block.instrs.size(), instr);
+	}
+
+	public BasicBlock entry() {
+		return blocks.get(0);
+	}
+
+	public Instr insert(BasicBlock block, int index, Instr instr) {
+		instr.block = block;
+		instr.id = nextId++;
+		block.instrs.add(index, instr);
+		for (BasicBlock target : instr.targets)
+			target.preds.add(block);
+		return instr;
+	}
+
+	// block not yet placed in 'blocks', the caller decides where it goes in the layout
+	public BasicBlock newBlock() {
+		return new BasicBlock(nextBlockId++);
+	}
+
+	public void replaceAllUses(Value old, Value replacement) {
+		for (BasicBlock block : blocks) {
+			for (Instr instr : block.instrs)
+				instr.args.replaceAll(v -> v == old ? replacement : v);
+		}
+	}
+
+	// An edge from a block with several successors to a block with several
+	// predecessors has nowhere to put the moves of the PHIs: give it its own block.
+	public void splitCriticalEdges() {
+		for (int i = 0; i < blocks.size(); i++) {
+			BasicBlock pred = blocks.get(i);
+			List<BasicBlock> succs = pred.succs();
+			if (succs.size() < 2) continue;
+
+			for (int j = 0; j < succs.size(); j++) {
+				BasicBlock succ = succs.get(j);
+				if (succ.preds.size() < 2) continue;
+
+				BasicBlock edge = newBlock();
+				Instr jmp = new Instr(Opcode.JMP, IrType.VOID);
+				jmp.targets.add(succ);
+				jmp.block = edge;
+				jmp.id = nextId++;
+				edge.instrs.add(jmp);
+				edge.preds.add(pred);
+
+				succ.preds.set(succ.preds.indexOf(pred), edge);
+				succs.set(j, edge);
+				blocks.add(blocks.indexOf(succ), edge);
+			}
+		}
+	}
+
+	public Map<Value, Integer> useCounts() {
+		Map<Value, Integer> uses = new HashMap<>();
+		for (BasicBlock block : blocks) {
+			for (Instr instr : block.instrs) {
+				for (Value arg : instr.args)
+					uses.merge(arg, 1, Integer::sum);
+			}
+		}
+		return uses;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append("(").append(params).append(") -> ").append(returnType).append(" {\n");
+		for (BasicBlock block : blocks) {
+			sb.append(block).append(": preds=").append(block.preds).append("\n");
+			for (Instr instr : block.instrs)
+				sb.append(instr.toLongString()).append("\n");
+		}
+		return sb.append("}\n").toString();
+	}
+}
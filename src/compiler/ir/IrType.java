@@ -0,0 +1,11 @@
+package compiler.ir;
+
+// type of a virtual register
+public enum IrType {
+	I64, PTR, VOID;
+
+	@Override
+	public String toString() {
+		return name().toLowerCase();
+	}
+}
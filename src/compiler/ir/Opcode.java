@@ -0,0 +1,31 @@
+package compiler.ir;
+
+public enum Opcode {
+	PARAM, // incoming argument 'index'
+	SLOT, // address of a FrameSlot
+	ADD, SUB, MUL, DIV, MOD, SHL, // DIV and MOD round toward zero, like idiv
+	SEXT, ZEXT, // args[0] with its low 'size' bytes sign / zero extended
+	EQ, NE, LT, GT, LE, GE, // compare, result is 0 or 1
+	LOAD, // args[0] + offset, 'size' bytes extended like SEXT or ZEXT ('unsigned')
+	STORE, // args[0] + offset = the low 'size' bytes of args[1]
+	CALL, // callee(args...)
+	PHI, // one arg per predecessor, in BasicBlock.preds order
+	JMP, BR, RET, // terminators: BR jumps to targets[0] if args[0] != 0, else to targets[1]
+	TAIL; // terminator: callee(args...) returns straight to our caller (see TailCalls)
+
+	public boolean isCompare() {
+		return switch (this) {
+		case EQ, NE, LT, GT, LE, GE -> true;
+		default -> false;
+		};
+	}
+
+	public boolean isTerminator() {
+		return this == JMP || this == BR || this == RET || this == TAIL;
+	}
+
+	@Override
+	public String toString() {
+		return name().toLowerCase();
+	}
+}
@@ -0,0 +1,10 @@
+package compiler.ir;
+
+// operand of an IR instruction: a constant or the result of another instruction
+public abstract class Value {
+	public IrType type;
+
+	protected Value(IrType type) {
+		this.type = type;
+	}
+}
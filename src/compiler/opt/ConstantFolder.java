@@ -0,0 +1,202 @@
+package compiler.opt;
+
+import java.util.*;
+
+import compiler.*;
+import compiler.ast.core.*;
+import compiler.ast.expr.*;
+import compiler.ast.stmt.*;
+import compiler.ast.var_def.*;
+import compiler.util.*;
+
+// Runs between Parser.parse() and CodeGen.gen():
+// - evaluates constant subtrees: (1 + 2 == 3) && (4 > 3) -> 1
+// - applies identities: x * 1, x + 0, x * 0, !!x, !(a < b) -> a >= b
+// - strength-reduces x * 2^n to x << n
+// - removes if/else branches and while loops whose condition is constant
+//
+// Arithmetic is done in 64 bits, like the generated code, and a result is only
+// folded when it fits in a NumNode (int).
+public class ConstantFolder {
+
+	private static Node bool(Node node) {
+		if (isBoolean(node)) return node;
+		return new BinOpNode(node, Token.Kind.NEQ, new NumNode(0));
+	}
+
+	private static Long evaluate(Token.Kind op, long l, long r) {
+		return switch (op) {
+		case PLUS -> l + r;
+		case MINUS -> l - r;
+		case MUL -> l * r;
+		case DIV -> r == 0 ? null : l / r;
+		case MOD -> r == 0 ? null : l % r;
+		case SHL -> l << r;
+		case EQ -> l == r ? 1L : 0L;
+		case NEQ -> l != r ? 1L : 0L;
+		case LT -> l < r ? 1L : 0L;
+		case GT -> l > r ? 1L : 0L;
+		case LE -> l <= r ? 1L : 0L;
+		case GE -> l >= r ? 1L : 0L;
+		case AND -> l != 0 && r != 0 ? 1L : 0L;
+		case OR -> l != 0 || r != 0 ? 1L : 0L;
+		default -> null;
+		};
+	}
+
+	private Node foldBinOp(BinOpNode bin) {
+		bin.left = foldExpr(bin.left);
+		bin.right = foldExpr(bin.right);
+		Node l = bin.left;
+		Node r = bin.right;
+
+		if (l instanceof NumNode ln && r instanceof NumNode rn) {
+			Long value = evaluate(bin.op, ln.value, rn.value);
+			if (value != null && value == value.intValue()) return new NumNode(value.intValue());
+			return bin;
+		}
+
+		Integer lc = l instanceof NumNode ln ? ln.value : null;
+		Integer rc = r instanceof NumNode rn ? rn.value : null;
+
+		switch (bin.op) {
+		case AND -> {
+			if (lc != null) return lc == 0 ? new NumNode(0) : bool(r);
+			if (rc != null && rc != 0) return bool(l);
+			if (rc != null && !Util.hasSideEffects(l)) return new NumNode(0);
+		}
+		case OR -> {
+			if (lc != null) return lc != 0 ? new NumNode(1) : bool(r);
+			if (rc != null && rc == 0) return bool(l);
+			if (rc != null && !Util.hasSideEffects(l)) return new NumNode(1);
+		}
+		case PLUS -> {
+			if (rc != null && rc == 0) return l;
+			if (lc != null && lc == 0) return r;
+		}
+		case MINUS -> {
+			if (rc != null && rc == 0) return l;
+		}
+		case DIV -> {
+			if (rc != null && rc == 1) return l;
+		}
+		case MOD -> {
+			if (rc != null && (rc == 1 || rc == -1) && !Util.hasSideEffects(l)) return new NumNode(0);
+		}
+		case MUL -> {
+			if (rc != null && rc == 1) return l;
+			if (lc != null && lc == 1) return r;
+			if (rc != null && rc == 0 && !Util.hasSideEffects(l)) return new NumNode(0);
+			if (lc != null && lc == 0 && !Util.hasSideEffects(r)) return new NumNode(0);
+			if (rc != null && isPowerOfTwo(rc)) return shift(l, rc);
+			if (lc != null && isPowerOfTwo(lc)) return shift(r, lc);
+		}
+		default -> {
+		}
+		}
+		return bin;
+	}
+
+	private void foldBlock(BlockNode block) {
+		ListIterator<Node> iter = block.statements.listIterator();
+		while (iter.hasNext()) {
+			Node stmt = foldStmt(iter.next());
+			if (stmt == null) iter.remove();
+			else iter.set(stmt);
+		}
+	}
+
+	private Node foldExpr(Node node) {
+		if (node instanceof BinOpNode bin) return foldBinOp(bin);
+		if (node instanceof UnaryOpNode uop) return foldNot(uop);
+		if (node instanceof AssignNode assign) return new AssignNode(assign.target, foldExpr(assign.value));
+		if (node instanceof FuncCallNode fn) fn.args.replaceAll(this::foldExpr);
+		return node;
+	}
+
+	private Node foldNot(UnaryOpNode uop) {
+		Node e = foldExpr(uop.expr);
+		if (uop.op != Token.Kind.NOT) return new UnaryOpNode(uop.op, e);
+
+		if (e instanceof NumNode num) return new NumNode(num.value == 0 ? 1 : 0);
+		if (e instanceof UnaryOpNode inner && inner.op == Token.Kind.NOT) return bool(inner.expr); // !!x
+		if (e instanceof BinOpNode bin) {
+			Token.Kind inverse = switch (bin.op) {
+			case EQ -> Token.Kind.NEQ;
+			case NEQ -> Token.Kind.EQ;
+			case LT -> Token.Kind.GE;
+			case GE -> Token.Kind.LT;
+			case GT -> Token.Kind.LE;
+			case LE -> Token.Kind.GT;
+			default -> null;
+			};
+			if (inverse != null) return new BinOpNode(bin.left, inverse, bin.right);
+		}
+		return new UnaryOpNode(uop.op, e);
+	}
+
+	// returns the replacement statement, or null when it can be removed
+	private Node foldStmt(Node node) {
+		if (node instanceof BlockNode block) {
+			foldBlock(block);
+			return block;
+
+		} else if (node instanceof IfNode ifn) {
+			ifn.cond = foldExpr(ifn.cond);
+			ifn.thenBranch = foldStmt(ifn.thenBranch);
+			if (ifn.thenBranch == null) ifn.thenBranch = new BlockNode(null, ifn);
+			if (ifn.elseBranch != null) ifn.elseBranch = foldStmt(ifn.elseBranch);
+
+			if (ifn.cond instanceof NumNode num) return num.value != 0 ? ifn.thenBranch : ifn.elseBranch;
+			return ifn;
+
+		} else if (node instanceof WhileNode wn) {
+			wn.cond = foldExpr(wn.cond);
+			if (wn.cond instanceof NumNode num && num.value == 0) return null;
+			wn.body = foldStmt(wn.body);
+			if (wn.body == null) wn.body = new BlockNode(null, wn);
+			return wn;
+
+		} else if (node instanceof LocalVarDeclNode decl) {
+			if (decl.value != null) decl.value = foldExpr(decl.value);
+			return decl;
+
+		} else if (node instanceof ReturnNode ret) {
+			return ret.expr == null ? ret : new ReturnNode(foldExpr(ret.expr));
+
+		} else if (node instanceof DeleteNode del) {
+			return new DeleteNode(foldExpr(del.expr));
+		}
+
+		return foldExpr(node);
+	}
+
+	private static boolean isBoolean(Node node) {
+		if (node instanceof NumNode num) return num.value == 0 || num.value == 1;
+		if (node instanceof UnaryOpNode uop) return uop.op == Token.Kind.NOT;
+		if (node instanceof BinOpNode bin) {
+			return switch (bin.op) {
+			case EQ, NEQ, LT, GT, LE, GE, AND, OR -> true;
+			default -> false;
+			};
+		}
+		return false;
+	}
+
+	private static boolean isPowerOfTwo(int value) {
+		return value > 1 && (value & (value - 1)) == 0;
+	}
+
+	private static Node shift(Node node, int powerOfTwo) {
+		return new BinOpNode(node, Token.Kind.SHL, new NumNode(Integer.numberOfTrailingZeros(powerOfTwo)));
+	}
+
+	public void fold(ProgramNode prog) {
+		for (ClassDefNode clazz : prog.types.values()) {
+			for (FuncDefNode method : clazz.methods.values()) {
+				if (method.body != null) foldBlock(method.body);
+			}
+		}
+		if (prog.main != null) foldBlock(prog.main.body);
+	}
+}
@@ -0,0 +1,194 @@
+package compiler.opt;
+
+import java.util.*;
+
+import compiler.ir.*;
+
+// Removes the code whose result cannot be observed, run by CodeGen on the SSA
+// form before and after the other passes:
+// - arithmetic on constants is computed, and branches on a constant (an
+//   inlined 'if (this.w == 0)' after a scalar replaced 'w = 0') become
+//   jumps. The blocks no path reaches any more are removed, with the code
+//   after a 'return'
+// - stores to a stack slot that no LOAD reads: the fields of a local object
+//   that are never read, or all of an unused local object, its initialization
+//   included. The slot must not escape: its address only reaches LOADs and
+//   STOREs, and its own self pointer. An object without stores left loses its
+//   stack space
+// - instructions whose value is not used, unused locals included: only
+//   STOREs, CALLs, terminators and the divisions that may trap are kept for
+//   their side effects, and what they use
+public class DeadCodeEliminator {
+
+	private IrFunction fn;
+
+	public void run(IrFunction fn) {
+		this.fn = fn;
+		foldConstants();
+		foldBranches();
+		removeUnreachableBlocks();
+		removeTrivialPhis();
+		removeDeadStores();
+		removeDeadInstrs();
+	}
+
+	// arithmetic and comparisons of constants, until there are none left
+	private void foldConstants() {
+		Map<Value, Value> folded = new HashMap<>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock block : fn.blocks) {
+				for (Instr instr : block.instrs) {
+					instr.args.replaceAll(arg -> folded.getOrDefault(arg, arg));
+					Long value = folded.containsKey(instr) ? null : evaluate(instr);
+					if (value == null) continue;
+					folded.put(instr, new Const(value));
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// null unless the result fits an immediate
+	private static Long evaluate(Instr instr) {
+		Long value = compute(instr);
+		return value != null && value == (int) (long) value ? value : null;
+	}
+
+	private static Long compute(Instr instr) {
+		if ((instr.op == Opcode.SEXT || instr.op == Opcode.ZEXT) && instr.args.get(0) instanceof Const c) {
+			int bits = 64 - instr.size * 8;
+			return instr.op == Opcode.SEXT ? c.value << bits >> bits : c.value << bits >>> bits;
+		}
+		if (instr.args.size() != 2 || !(instr.args.get(0) instanceof Const a) || !(instr.args.get(1) instanceof Const b))
+			return null;
+		long l = a.value, r = b.value;
+		return switch (instr.op) {
+		case ADD -> l + r;
+		case SUB -> l - r;
+		case MUL -> l * r;
+		case DIV -> r == 0 || r == -1 ? null : l / r;
+		case MOD -> r == 0 || r == -1 ? null : l % r;
+		case SHL -> l << r;
+		case EQ -> l == r ? 1L : 0L;
+		case NE -> l != r ? 1L : 0L;
+		case LT -> l < r ? 1L : 0L;
+		case GT -> l > r ? 1L : 0L;
+		case LE -> l <= r ? 1L : 0L;
+		case GE -> l >= r ? 1L : 0L;
+		default -> null;
+		};
+	}
+
+	private void foldBranches() {
+		for (BasicBlock block : fn.blocks) {
+			Instr br = block.terminator();
+			if (br == null || br.op != Opcode.BR || !(br.args.get(0) instanceof Const c)) continue;
+			BasicBlock taken = br.targets.get(c.value != 0 ? 0 : 1);
+			BasicBlock dropped = br.targets.get(c.value != 0 ? 1 : 0);
+			if (taken == dropped) continue;
+
+			removeEdge(block, dropped);
+			block.instrs.remove(br);
+			Instr jmp = new Instr(Opcode.JMP, IrType.VOID);
+			jmp.targets.add(taken);
+			fn.insert(block, block.instrs.size(), jmp);
+			taken.preds.remove(taken.preds.lastIndexOf(block)); // insert() added it again
+		}
+	}
+
+	// removes the predecessor 'pred' of 'block' and its PHI arguments
+	private static void removeEdge(BasicBlock pred, BasicBlock block) {
+		int index;
+		while ((index = block.preds.indexOf(pred)) >= 0) {
+			block.preds.remove(index);
+			for (Instr phi : block.phis())
+				phi.args.remove(index);
+		}
+	}
+
+	private void removeUnreachableBlocks() {
+		Set<BasicBlock> reachable = new HashSet<>();
+		Deque<BasicBlock> work = new ArrayDeque<>(List.of(fn.entry()));
+		while (!work.isEmpty()) {
+			BasicBlock block = work.pop();
+			if (reachable.add(block)) work.addAll(block.succs());
+		}
+		for (BasicBlock block : fn.blocks) {
+			if (reachable.contains(block)) continue;
+			for (BasicBlock succ : block.succs()) {
+				if (reachable.contains(succ)) removeEdge(block, succ);
+			}
+		}
+		fn.blocks.removeIf(block -> !reachable.contains(block));
+	}
+
+	// a PHI left with a single value, once an edge is gone
+	private void removeTrivialPhis() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock block : fn.blocks) {
+				for (Instr phi : block.phis()) {
+					Value same = null;
+					boolean trivial = true;
+					for (Value arg : phi.args) {
+						if (arg == phi || arg == same) continue;
+						if (same != null) trivial = false;
+						same = arg;
+					}
+					if (!trivial || same == null) continue;
+					block.instrs.remove(phi);
+					fn.replaceAllUses(phi, same);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private void removeDeadStores() {
+		Map<Value, List<Instr>> users = SlotAccesses.users(fn);
+		for (Instr slot : SlotAccesses.slots(fn)) {
+			SlotAccesses accesses = SlotAccesses.of(slot, users);
+			if (accesses == null || accesses.readsSelfPointer()) continue;
+			for (Instr store : accesses.stores) {
+				if (!accesses.isRead(SlotAccesses.offset(store), store.size)) store.block.instrs.remove(store);
+			}
+		}
+	}
+
+	private static boolean hasSideEffects(Instr instr) {
+		return switch (instr.op) {
+		case PARAM, STORE, CALL, TAIL, JMP, BR, RET -> true;
+		case DIV, MOD -> !(instr.args.get(1) instanceof Const c) || c.value == 0 || c.value == -1;
+		default -> false;
+		};
+	}
+
+	private void removeDeadInstrs() {
+		Set<Instr> live = new HashSet<>();
+		Deque<Instr> work = new ArrayDeque<>();
+		for (BasicBlock block : fn.blocks) {
+			for (Instr instr : block.instrs) {
+				if (hasSideEffects(instr)) work.push(instr);
+			}
+		}
+		while (!work.isEmpty()) {
+			Instr instr = work.pop();
+			if (!live.add(instr)) continue;
+			for (Value arg : instr.args) {
+				if (arg instanceof Instr def) work.push(def);
+			}
+		}
+
+		Set<FrameSlot> slots = new HashSet<>();
+		for (BasicBlock block : fn.blocks) {
+			block.instrs.removeIf(instr -> !live.contains(instr));
+			for (Instr instr : block.instrs) {
+				if (instr.op == Opcode.SLOT) slots.add(instr.slot);
+			}
+		}
+		fn.slots.removeIf(slot -> !slots.contains(slot));
+	}
+}
@@ -0,0 +1,99 @@
+package compiler.opt;
+
+import java.util.*;
+
+import compiler.ast.core.*;
+import compiler.ast.expr.*;
+import compiler.ast.stmt.*;
+import compiler.ast.var_def.*;
+
+// Chooses the calls that IrBuilder replaces with the body of the callee.
+//
+// The cost of a method is the number of AST nodes of its body: an accessor
+// like 'return this.w * this.h;' costs 6, less than the argument moves, call,
+// frame and return it saves. A callee is inlined when it is:
+// - in the same unit as the caller (in a project, other units may change alone)
+// - not recursive, directly or through other methods
+// - not @CallMethodWhenAlloc (its allocations are sampled in its own code)
+// - annotated @Inline, or not annotated @NoInline and not above MAX_COST
+// Inlined bodies can inline their own calls, up to MAX_DEPTH levels.
+public class Inliner {
+	public static final String INLINE = "Inline";
+	public static final String NO_INLINE = "NoInline";
+	public static final int MAX_COST = 16;
+	public static final int MAX_DEPTH = 4;
+
+	private final Map<String, FuncDefNode> functions = new HashMap<>();
+	private final Map<String, Integer> costs = new HashMap<>();
+	private final Map<String, Set<String>> callees = new HashMap<>();
+	private final Set<String> recursive = new HashSet<>();
+
+	public Inliner(ProgramNode prog) {
+		for (ClassDefNode clazz : prog.types.values()) {
+			for (FuncDefNode method : clazz.methods.values())
+				functions.put(method.name, method);
+		}
+		if (prog.main != null) functions.put(prog.main.name, prog.main);
+
+		for (FuncDefNode fn : functions.values()) {
+			Set<String> calls = new HashSet<>();
+			costs.put(fn.name, cost(fn.body, calls));
+			callees.put(fn.name, calls);
+		}
+		for (String name : functions.keySet()) {
+			if (reaches(name, name, new HashSet<>())) recursive.add(name);
+		}
+	}
+
+	// whether a call chain goes from 'from' to 'to'
+	private boolean reaches(String from, String to, Set<String> visited) {
+		for (String callee : callees.getOrDefault(from, Set.of())) {
+			if (callee.equals(to)) return true;
+			if (visited.add(callee) && reaches(callee, to, visited)) return true;
+		}
+		return false;
+	}
+
+	// AST nodes under 'node', collecting the names of the methods it calls
+	private static int cost(Node node, Set<String> calls) {
+		if (node == null) return 0;
+		int cost = 1;
+		if (node instanceof BlockNode block) {
+			for (Node stmt : block.statements)
+				cost += cost(stmt, calls);
+		} else if (node instanceof ReturnNode ret) {
+			cost += cost(ret.expr, calls);
+		} else if (node instanceof IfNode ifn) {
+			cost += cost(ifn.cond, calls) + cost(ifn.thenBranch, calls) + cost(ifn.elseBranch, calls);
+		} else if (node instanceof WhileNode wn) {
+			cost += cost(wn.cond, calls) + cost(wn.body, calls);
+		} else if (node instanceof BinOpNode bin) {
+			cost += cost(bin.left, calls) + cost(bin.right, calls);
+		} else if (node instanceof UnaryOpNode uop) {
+			cost += cost(uop.expr, calls);
+		} else if (node instanceof AssignNode assign) {
+			cost += cost(assign.target, calls) + cost(assign.value, calls);
+		} else if (node instanceof FieldAccessNode fa) {
+			cost += cost(fa.target, calls);
+		} else if (node instanceof LocalVarDeclNode decl) {
+			cost += cost(decl.value, calls);
+		} else if (node instanceof DeleteNode del) {
+			cost += cost(del.expr, calls);
+		} else if (node instanceof FuncCallNode call) {
+			calls.add(call.name);
+			for (Node arg : call.args)
+				cost += cost(arg, calls);
+		}
+		return cost;
+	}
+
+	// the method to inline for a call of 'name' at 'depth' inlined bodies deep, null to keep the call
+	public FuncDefNode callee(String name, int depth) {
+		FuncDefNode fn = functions.get(name);
+		if (fn == null || fn.body == null || depth >= MAX_DEPTH || recursive.contains(name)) return null;
+		if (fn.annotations.contains(FuncDefNode.CALL_METHOD_WHEN_ALLOC)) return null;
+		if (fn.annotations.contains(INLINE)) return fn;
+		if (fn.annotations.contains(NO_INLINE) || costs.get(name) > MAX_COST) return null;
+		return fn;
+	}
+}
@@ -0,0 +1,284 @@
+package compiler.opt;
+
+import java.util.*;
+
+import compiler.ir.*;
+
+// Loop optimizations on the SSA form, run by CodeGen before register allocation.
+//
+// Loops are the natural loops of the CFG: a back edge goes from a block (the
+// latch) to a block that dominates it (the header, the condition of a while).
+// A loop is optimized when it has a preheader: a single block outside the loop
+// that jumps to the header. Inner loops go first, so what they hoist can leave
+// the outer loop too.
+//
+// - Loop-invariant code motion: arithmetic, comparisons and field address
+//   computations whose operands are defined outside the loop move to the
+//   preheader. A LOAD moves too when no CALL or STORE of the loop may write
+//   its field, and when running it before the loop cannot fault: its object is
+//   a stack slot or 'this', or the LOAD is in the header, that always runs.
+// - Induction variable strength reduction: for i = phi(init, i + c), every
+//   i * k (or i << s, see ConstantFolder) with a constant k becomes a new
+//   j = phi(init * k, j + c * k): an add per iteration instead of a multiply.
+public class LoopOptimizer {
+
+	private record Loop(BasicBlock header, Set<BasicBlock> blocks, List<BasicBlock> latches) {
+	}
+
+	// a field address: object + constant offset
+	private record Address(Value root, long offset) {
+	}
+
+	private IrFunction fn;
+	private final Map<BasicBlock, BasicBlock> idom = new HashMap<>();
+	private final Map<BasicBlock, Integer> order = new HashMap<>();
+
+	public void run(IrFunction fn) {
+		this.fn = fn;
+		computeDominators();
+
+		List<Loop> loops = findLoops();
+		loops.sort(Comparator.comparingInt(loop -> loop.blocks.size()));
+		for (Loop loop : loops) {
+			BasicBlock preheader = preheader(loop);
+			if (preheader == null) continue;
+			hoist(loop, preheader);
+			reduce(loop, preheader);
+		}
+	}
+
+	private List<BasicBlock> reversePostorder() {
+		List<BasicBlock> postorder = new ArrayList<>();
+		Set<BasicBlock> visited = new HashSet<>();
+		Deque<Iterator<BasicBlock>> stack = new ArrayDeque<>();
+		Deque<BasicBlock> path = new ArrayDeque<>();
+		visited.add(fn.entry());
+		path.push(fn.entry());
+		stack.push(fn.entry().succs().iterator());
+		while (!stack.isEmpty()) {
+			if (stack.peek().hasNext()) {
+				BasicBlock succ = stack.peek().next();
+				if (visited.add(succ)) {
+					path.push(succ);
+					stack.push(succ.succs().iterator());
+				}
+			} else {
+				stack.pop();
+				postorder.add(path.pop());
+			}
+		}
+		Collections.reverse(postorder);
+		return postorder;
+	}
+
+	// Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm"
+	private void computeDominators() {
+		idom.clear();
+		order.clear();
+		List<BasicBlock> rpo = reversePostorder();
+		for (int i = 0; i < rpo.size(); i++)
+			order.put(rpo.get(i), i);
+
+		BasicBlock entry = fn.entry();
+		idom.put(entry, entry);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock block : rpo) {
+				if (block == entry) continue;
+				BasicBlock dom = null;
+				for (BasicBlock pred : block.preds) {
+					if (!idom.containsKey(pred)) continue;
+					dom = dom == null ? pred : intersect(pred, dom);
+				}
+				if (dom != idom.get(block)) {
+					idom.put(block, dom);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private BasicBlock intersect(BasicBlock a, BasicBlock b) {
+		while (a != b) {
+			while (order.get(a) > order.get(b))
+				a = idom.get(a);
+			while (order.get(b) > order.get(a))
+				b = idom.get(b);
+		}
+		return a;
+	}
+
+	private boolean dominates(BasicBlock a, BasicBlock b) {
+		if (!idom.containsKey(b)) return false; // unreachable
+		while (true) {
+			if (b == a) return true;
+			BasicBlock up = idom.get(b);
+			if (up == b) return false;
+			b = up;
+		}
+	}
+
+	private List<Loop> findLoops() {
+		Map<BasicBlock, Loop> loops = new LinkedHashMap<>();
+		for (BasicBlock block : fn.blocks) {
+			for (BasicBlock succ : block.succs()) {
+				if (!dominates(succ, block)) continue;
+				Loop loop = loops.computeIfAbsent(succ, h -> new Loop(h, new HashSet<>(Set.of(h)), new ArrayList<>()));
+				loop.latches.add(block);
+
+				// the blocks that reach the latch without going through the header
+				Deque<BasicBlock> work = new ArrayDeque<>(List.of(block));
+				while (!work.isEmpty()) {
+					BasicBlock b = work.pop();
+					if (loop.blocks.add(b)) work.addAll(b.preds);
+				}
+			}
+		}
+		return new ArrayList<>(loops.values());
+	}
+
+	private static BasicBlock preheader(Loop loop) {
+		BasicBlock preheader = null;
+		for (BasicBlock pred : loop.header.preds) {
+			if (loop.blocks.contains(pred)) continue;
+			if (preheader != null) return null;
+			preheader = pred;
+		}
+		if (preheader == null || preheader.terminator() == null || preheader.terminator().op != Opcode.JMP) return null;
+		return preheader;
+	}
+
+	private static boolean isInvariant(Loop loop, Value v) {
+		return !(v instanceof Instr instr) || !loop.blocks.contains(instr.block);
+	}
+
+	private static Address address(Value base, long offset) {
+		while (base instanceof Instr instr && instr.op == Opcode.ADD && instr.args.get(1) instanceof Const c) {
+			offset += c.value;
+			base = instr.args.get(0);
+		}
+		return new Address(base, offset);
+	}
+
+	private static boolean isSlot(Value v) {
+		return v instanceof Instr instr && instr.op == Opcode.SLOT;
+	}
+
+	// fields are at most 8 bytes: two addresses of one object overlap when less than 8 bytes apart
+	private static boolean mayAlias(Address a, Address b) {
+		if (a.root == b.root) return Math.abs(a.offset - b.offset) < 8;
+		return !(isSlot(a.root) && isSlot(b.root));
+	}
+
+	private boolean canHoistLoad(Loop loop, Instr load) {
+		Address addr = address(load.args.get(0), load.offset);
+		boolean safe = isSlot(addr.root) || (!fn.params.isEmpty() && addr.root == fn.params.get(0)
+				&& fn.params.get(0).type == IrType.PTR) || load.block == loop.header;
+		if (!safe) return false;
+
+		for (BasicBlock block : loop.blocks) {
+			for (Instr instr : block.instrs) {
+				if (instr.op == Opcode.CALL) return false;
+				if (instr.op == Opcode.STORE && mayAlias(addr, address(instr.args.get(0), instr.offset))) return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean canHoist(Loop loop, Instr instr) {
+		for (Value arg : instr.args) {
+			if (!isInvariant(loop, arg)) return false;
+		}
+		return switch (instr.op) {
+		case ADD, SUB, MUL, SHL, EQ, NE, LT, GT, LE, GE -> true;
+		case DIV, MOD -> instr.args.get(1) instanceof Const c && c.value != 0 && c.value != -1; // cannot trap
+		case LOAD -> canHoistLoad(loop, instr);
+		default -> false;
+		};
+	}
+
+	private void hoist(Loop loop, BasicBlock preheader) {
+		List<BasicBlock> blocks = new ArrayList<>(fn.blocks);
+		blocks.removeIf(b -> !loop.blocks.contains(b));
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock block : blocks) {
+				Iterator<Instr> it = block.instrs.iterator();
+				while (it.hasNext()) {
+					Instr instr = it.next();
+					if (!canHoist(loop, instr)) continue;
+					it.remove();
+					instr.block = preheader;
+					preheader.instrs.add(preheader.instrs.size() - 1, instr);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private static boolean fitsInt(long v) {
+		return v == (int) v;
+	}
+
+	private void reduce(Loop loop, BasicBlock preheader) {
+		if (loop.latches.size() != 1 || loop.header.preds.size() != 2) return;
+		int preIndex = loop.header.preds.indexOf(preheader);
+		int latchIndex = 1 - preIndex;
+
+		for (Instr iv : loop.header.phis()) {
+			Value init = iv.args.get(preIndex);
+			if (!(iv.args.get(latchIndex) instanceof Instr next) || !loop.blocks.contains(next.block)) continue;
+
+			// i + c, c + i or i - c
+			long step;
+			if (next.op == Opcode.ADD && next.args.get(0) == iv && next.args.get(1) instanceof Const c) step = c.value;
+			else if (next.op == Opcode.ADD && next.args.get(1) == iv && next.args.get(0) instanceof Const c) step = c.value;
+			else if (next.op == Opcode.SUB && next.args.get(0) == iv && next.args.get(1) instanceof Const c) step = -c.value;
+			else continue;
+
+			for (BasicBlock block : loop.blocks) {
+				for (Instr instr : new ArrayList<>(block.instrs)) {
+					long factor = factor(instr, iv);
+					if (factor == 0 || !fitsInt(factor) || !fitsInt(step * factor)) continue;
+					replace(instr, iv, init, next, factor, step * factor, preheader, preIndex);
+				}
+			}
+		}
+	}
+
+	// k of i * k, k * i or i << s (1 << s), 0 if 'instr' is not one of them
+	private static long factor(Instr instr, Instr iv) {
+		if (instr.op == Opcode.MUL && instr.args.get(0) == iv && instr.args.get(1) instanceof Const c) return c.value;
+		if (instr.op == Opcode.MUL && instr.args.get(1) == iv && instr.args.get(0) instanceof Const c) return c.value;
+		if (instr.op == Opcode.SHL && instr.args.get(0) == iv && instr.args.get(1) instanceof Const c
+				&& c.value >= 0 && c.value < 31) {
+			return 1L << c.value;
+		}
+		return 0;
+	}
+
+	// 'mul' (= iv * factor) becomes a PHI of the header that grows by 'step' where 'next' is computed
+	private void replace(Instr mul, Instr iv, Value init, Instr next, long factor, long step, BasicBlock preheader,
+			int preIndex) {
+		Value start;
+		if (init instanceof Const c && fitsInt(c.value * factor)) {
+			start = new Const(c.value * factor);
+		} else {
+			Instr product = new Instr(Opcode.MUL, IrType.I64, init, new Const(factor));
+			start = fn.insert(preheader, preheader.instrs.size() - 1, product);
+		}
+
+		BasicBlock header = iv.block;
+		Instr phi = fn.insert(header, 0, new Instr(Opcode.PHI, IrType.I64));
+		Instr add = new Instr(Opcode.ADD, IrType.I64, phi, new Const(step));
+		fn.insert(next.block, next.block.instrs.indexOf(next) + 1, add);
+		for (int i = 0; i < header.preds.size(); i++)
+			phi.args.add(i == preIndex ? start : add);
+
+		mul.block.instrs.remove(mul);
+		fn.replaceAllUses(mul, phi);
+	}
+}
@@ -0,0 +1,47 @@
+package compiler.opt;
+
+// Signed 64-bit division by a constant d as a multiplication (Granlund and
+// Montgomery, "Division by Invariant Integers using Multiplication"; the
+// algorithm is the one of Hacker's Delight, 10-1):
+//
+//   q = high 64 bits of (multiplier * x)
+//   q += x when d > 0 and multiplier < 0, q -= x when d < 0 and multiplier > 0
+//   q >>= shift (arithmetic)
+//   q += 1 when q < 0
+//
+// gives x / d rounded toward zero, like idiv, for every x. d must not be -1, 0 or 1.
+public record MagicDivisor(long multiplier, int shift) {
+
+	public static MagicDivisor of(long d) {
+		if (d >= -1 && d <= 1) throw new IllegalArgumentException("No magic number for " + d);
+		long twoW = Long.MIN_VALUE; // 2^63, unsigned
+		long ad = Math.abs(d); // 2^63 when d = Long.MIN_VALUE, unsigned
+		long t = twoW + (d >>> 63);
+		long anc = t - 1 - Long.remainderUnsigned(t, ad); // |nc|
+		int p = 63;
+		long q1 = Long.divideUnsigned(twoW, anc);
+		long r1 = twoW - q1 * anc;
+		long q2 = Long.divideUnsigned(twoW, ad);
+		long r2 = twoW - q2 * ad;
+		long delta;
+		do {
+			p++;
+			q1 <<= 1;
+			r1 <<= 1;
+			if (Long.compareUnsigned(r1, anc) >= 0) {
+				q1++;
+				r1 -= anc;
+			}
+			q2 <<= 1;
+			r2 <<= 1;
+			if (Long.compareUnsigned(r2, ad) >= 0) {
+				q2++;
+				r2 -= ad;
+			}
+			delta = ad - r2;
+		} while (Long.compareUnsigned(q1, delta) < 0 || (q1 == delta && r1 == 0));
+
+		long multiplier = q2 + 1;
+		return new MagicDivisor(d < 0 ? -multiplier : multiplier, p - 64);
+	}
+}
@@ -0,0 +1,328 @@
+package compiler.opt;
+
+import static compiler.asm.Mnemonic.*;
+
+import java.util.*;
+
+import compiler.asm.*;
+
+// Runs on the InstrBuffer of every function after CodeGen, and rewrites small
+// windows of consecutive instructions:
+// - push-pop:     push %rax; pop %rdi                      -> mov %rax, %rdi
+// - store-reload: mov %rax, -8(%rbp); mov -8(%rbp), %rcx   -> mov %rax, -8(%rbp); mov %rax, %rcx
+// - copy:         mov %rax, %r11; mov %r11, %rdi           -> mov %rax, %rdi (%r11 dead)
+// - bool-branch:  setl %al; movzbq %al, %rax; mov %rax, %r10; cmp $0, %r10; je L -> jge L
+// - jump-next:    jmp L (or jcc L) right before L:         -> removed
+//
+// A rule that drops a register write first checks that the register is dead:
+// no path from there reads it before overwriting it (see isLive). Rules can be
+// chosen by name, and every rule counts the instructions it eliminated.
+public class Peephole {
+	public enum Rule {
+		PUSH_POP, STORE_RELOAD, COPY, BOOL_BRANCH, JUMP_NEXT;
+
+		public String label() {
+			return name().toLowerCase().replace('_', '-');
+		}
+	}
+
+	private static final Operand[] ARG_REGS = { Operand.RDI, Operand.RSI, Operand.RDX, Operand.RCX, Operand.R8,
+			Operand.R9 };
+	private static final Set<Integer> CALLEE_SAVED = Set.of(3, 4, 5, 12, 13, 14, 15); // rbx, rsp, rbp, r12-r15
+
+	private final Set<Rule> rules;
+	private final int[] removed = new int[Rule.values().length];
+
+	private InstrBuffer code;
+	// instruction index of each label of 'code'
+	private final Map<String, Integer> labels = new HashMap<>();
+
+	public Peephole() {
+		this(EnumSet.allOf(Rule.class));
+	}
+
+	public Peephole(Set<Rule> rules) {
+		this.rules = rules;
+	}
+
+	// "store-reload,jump-next", "all" or "none"
+	public static Set<Rule> parseRules(String names) {
+		if (names.equals("all")) return EnumSet.allOf(Rule.class);
+		Set<Rule> rules = EnumSet.noneOf(Rule.class);
+		if (names.equals("none")) return rules;
+		for (String name : names.split(",")) {
+			Rule rule = Arrays.stream(Rule.values()).filter(r -> r.label().equals(name.trim())).findFirst()
+					.orElseThrow(() -> new RuntimeException("Unknown peephole rule: " + name));
+			rules.add(rule);
+		}
+		return rules;
+	}
+
+	public Set<Rule> rules() {
+		return rules;
+	}
+
+	// instructions eliminated by 'rule' so far
+	public int removed(Rule rule) {
+		return removed[rule.ordinal()];
+	}
+
+	public int removed() {
+		return Arrays.stream(removed).sum();
+	}
+
+	// adds the counters of another run (one Peephole per thread)
+	public synchronized void merge(Peephole other) {
+		for (int i = 0; i < removed.length; i++)
+			removed[i] += other.removed[i];
+	}
+
+	public void run(InstrBuffer code) {
+		this.code = code;
+		labels.clear();
+		for (int i = 0; i < code.size(); i++) {
+			if (code.op(i) == LABEL) labels.put(code.symbol(i), i);
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = next(-1); i >= 0; i = next(i)) {
+				if (code.op(i) == LABEL) continue;
+				if ((rules.contains(Rule.PUSH_POP) && pushPop(i)) || (rules.contains(Rule.STORE_RELOAD) && storeReload(i))
+						|| (rules.contains(Rule.COPY) && copy(i)) || (rules.contains(Rule.BOOL_BRANCH) && boolBranch(i))
+						|| (rules.contains(Rule.JUMP_NEXT) && jumpNext(i))) {
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// next instruction (or label) that was not removed, -1 at the end
+	private int next(int i) {
+		for (i++; i < code.size(); i++) {
+			if (!code.isRemoved(i)) return i;
+		}
+		return -1;
+	}
+
+	// next instruction of the same straight line: -1 at the end or at a label
+	private int nextInLine(int i) {
+		int j = next(i);
+		return j >= 0 && code.op(j) != LABEL ? j : -1;
+	}
+
+	private void remove(Rule rule, int... instrs) {
+		for (int i : instrs)
+			code.remove(i);
+		removed[rule.ordinal()] += instrs.length;
+	}
+
+	private boolean is(int i, Mnemonic op, int argc) {
+		return i >= 0 && code.op(i) == op && code.argc(i) == argc;
+	}
+
+	private boolean isReg(int i, int k) {
+		return code.kind(i, k) == Operand.Kind.REG;
+	}
+
+	// a 64-bit register move or load/store (no explicit size, or 8)
+	private boolean isMov64(int i) {
+		if (!is(i, MOV, 2) || (code.opSize(i) != 0 && code.opSize(i) != 8)) return false;
+		for (int k = 0; k < 2; k++) {
+			if (isReg(i, k) && code.arg(i, k).size != 8) return false;
+		}
+		return true;
+	}
+
+	private boolean pushPop(int i) {
+		int j = nextInLine(i);
+		if (!is(i, PUSH, 1) || !is(j, POP, 1) || code.kind(i, 0) == Operand.Kind.MEM || !isReg(j, 0)) return false;
+		Operand src = code.arg(i, 0), dst = code.arg(j, 0);
+		if (src.equals(dst)) {
+			remove(Rule.PUSH_POP, i, j);
+		} else {
+			code.replace(j, MOV, -1, 8, src, dst);
+			remove(Rule.PUSH_POP, i);
+		}
+		return true;
+	}
+
+	private boolean storeReload(int i) {
+		int j = nextInLine(i);
+		if (!isMov64(i) || !isMov64(j) || !isReg(i, 0) || code.kind(i, 1) != Operand.Kind.MEM || !isReg(j, 1)
+				|| !code.arg(i, 1).equals(code.arg(j, 0))) {
+			return false;
+		}
+		Operand reg = code.arg(i, 0), dst = code.arg(j, 1);
+		if (reg.equals(dst)) {
+			remove(Rule.STORE_RELOAD, j);
+			return true;
+		}
+		// not an instruction less, but a register copy instead of a memory load
+		code.replace(j, MOV, -1, 0, reg, dst);
+		return true;
+	}
+
+	private boolean copy(int i) {
+		int j = nextInLine(i);
+		if (!isMov64(i) || !isMov64(j) || !isReg(i, 1) || !isReg(j, 0)) return false;
+		Operand src = code.arg(i, 0), tmp = code.arg(i, 1), dst = code.arg(j, 1);
+		if (!tmp.equals(code.arg(j, 0)) || (!src.isReg() && !dst.isReg())) return false;
+		if (dst.isMem() && (dst.reg == tmp.reg || src.value != (int) src.value)) return false;
+		if (!tmp.equals(dst) && isLive(next(j), tmp.reg)) return false;
+
+		if (src.equals(dst)) {
+			remove(Rule.COPY, i, j);
+		} else {
+			code.replace(j, MOV, -1, src.isImm() && dst.isMem() ? 8 : 0, src, dst);
+			remove(Rule.COPY, i);
+		}
+		return true;
+	}
+
+	// setcc %al; movzbq %al, %rax; [mov %rax, R;] cmp $0, R; je/jne L
+	private boolean boolBranch(int i) {
+		if (!is(i, SETCC, 1) || !code.arg(i, 0).equals(Operand.AL)) return false;
+		int movz = nextInLine(i);
+		if (!is(movz, MOVZX, 2) || !code.arg(movz, 0).equals(Operand.AL) || !code.arg(movz, 1).equals(Operand.RAX)) {
+			return false;
+		}
+
+		Operand value = Operand.RAX;
+		int copy = -1;
+		int test = nextInLine(movz);
+		if (isMov64(test) && code.arg(test, 0).equals(Operand.RAX) && isReg(test, 1)) {
+			copy = test;
+			value = code.arg(copy, 1);
+			test = nextInLine(copy);
+		}
+		boolean isTest = is(test, CMP, 2) && code.arg(test, 0).equals(Operand.imm(0)) && code.arg(test, 1).equals(value);
+		int jump = nextInLine(test);
+		if (!isTest || !is(jump, JCC, 1) || (code.cond(jump) != E && code.cond(jump) != NE)) return false;
+		if (isLive(jump, Operand.RAX.reg) || isLive(jump, value.reg)) return false;
+
+		// the flags of the comparison before setcc are still there: x86 conditions come in pairs, cc ^ 1 is the opposite
+		int cond = code.cond(jump) == NE ? code.cond(i) : code.cond(i) ^ 1;
+		code.replace(jump, JCC, cond, 0, code.arg(jump, 0));
+		if (copy >= 0) remove(Rule.BOOL_BRANCH, i, movz, copy, test);
+		else remove(Rule.BOOL_BRANCH, i, movz, test);
+		return true;
+	}
+
+	private boolean jumpNext(int i) {
+		if (code.op(i) != JMP && code.op(i) != JCC) return false;
+		String target = code.symbol(i);
+		for (int j = next(i); j >= 0 && code.op(j) == LABEL; j = next(j)) {
+			if (code.symbol(j).equals(target)) {
+				remove(Rule.JUMP_NEXT, i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Whether register 'reg' may be read, from instruction 'start' on, before
+	// being overwritten. Follows the jumps; an unknown path counts as a read.
+	private boolean isLive(int start, int reg) {
+		BitSet visited = new BitSet();
+		Deque<Integer> work = new ArrayDeque<>();
+		work.push(start);
+		while (!work.isEmpty()) {
+			int i = work.pop();
+			while (true) {
+				if (i < 0 || i >= code.size()) return true; // falls off the function
+				if (visited.get(i)) break;
+				visited.set(i);
+				if (code.isRemoved(i) || code.op(i) == LABEL) {
+					i++;
+					continue;
+				}
+
+				Mnemonic op = code.op(i);
+				if (reads(i, reg)) return true;
+				if (op == RET || writes(i, reg)) break;
+				if (op == JMP || op == JCC) {
+					Integer target = labels.get(code.symbol(i));
+					if (target == null) return true;
+					if (op == JMP) {
+						i = target;
+						continue;
+					}
+					work.push(target);
+				}
+				i++;
+			}
+		}
+		return false;
+	}
+
+	private boolean reads(int i, int reg) {
+		Mnemonic op = code.op(i);
+		int argc = code.argc(i);
+		for (int k = 0; k < argc; k++) {
+			if (code.kind(i, k) == Operand.Kind.MEM && code.arg(i, k).reg == reg) return true;
+		}
+		switch (op) {
+		case RET:
+			return reg == Operand.RAX.reg || CALLEE_SAVED.contains(reg);
+		case CALL:
+			for (Operand arg : ARG_REGS) {
+				if (arg.reg == reg) return true;
+			}
+			return reg == Operand.RSP.reg;
+		case CQO:
+			return reg == Operand.RAX.reg;
+		case IDIV:
+			if (reg == Operand.RAX.reg || reg == Operand.RDX.reg) return true;
+			break;
+		case PUSH, POP:
+			if (reg == Operand.RSP.reg) return true;
+			if (op == POP) return false;
+			break;
+		case SETCC, JMP, JCC:
+			return false;
+		case MOV, LEA, MOVZX, MOVSX:
+			argc--; // the destination is only written
+			break;
+		default:
+			if (op == IMUL && argc == 1 && reg == Operand.RAX.reg) return true;
+		}
+		for (int k = 0; k < argc; k++) {
+			if (isReg(i, k) && code.arg(i, k).reg == reg) return true;
+		}
+		return false;
+	}
+
+	// whether instruction i overwrites all of 'reg' (a 32-bit write clears the upper half)
+	private boolean writes(int i, int reg) {
+		switch (code.op(i)) {
+		case MOV, LEA, MOVZX, MOVSX, POP: {
+			int dst = code.argc(i) - 1;
+			if (!isReg(i, dst)) return false;
+			Operand o = code.arg(i, dst);
+			return o.reg == reg && o.size >= 4;
+		}
+		case CALL:
+			return !CALLEE_SAVED.contains(reg);
+		case CQO:
+			return reg == Operand.RDX.reg;
+		case IDIV:
+			return reg == Operand.RAX.reg || reg == Operand.RDX.reg;
+		case IMUL:
+			return code.argc(i) == 1 && (reg == Operand.RAX.reg || reg == Operand.RDX.reg);
+		default:
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Rule rule : Rule.values()) {
+			if (sb.length() > 0) sb.append(", ");
+			sb.append(rule.label()).append(' ').append(removed(rule));
+		}
+		return sb.toString();
+	}
+}
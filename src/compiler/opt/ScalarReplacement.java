@@ -0,0 +1,124 @@
+package compiler.opt;
+
+import java.util.*;
+
+import compiler.ir.*;
+
+// Scalar replacement of local objects, run by CodeGen between two
+// DeadCodeEliminator runs: the first removes the unreachable blocks, the
+// second the stores, SLOTs and trivial PHIs left here.
+//
+// A local object ('Rect r;') whose address does not escape (see SlotAccesses:
+// it is not passed to a call, inlined methods do not count) and whose fields
+// are accessed one at a time, never overlapping, does not need its memory:
+// each field becomes an SSA variable. A LOAD becomes the value of the last
+// STORE to its field on the way, a PHI where paths with different values
+// meet. A field read before any store is 0. The object then needs no stack
+// memory: the fields live in registers. A value stored to a narrow field is
+// already in its range (IrBuilder converts it), so loading it back would not
+// change it.
+public class ScalarReplacement {
+
+	private IrFunction fn;
+	// per block, the value of each field at its end / at its start
+	private final Map<BasicBlock, Map<Long, Value>> endValues = new HashMap<>();
+	private final Map<BasicBlock, Map<Long, Value>> startValues = new HashMap<>();
+	private final Map<Long, IrType> fieldTypes = new HashMap<>();
+
+	public void run(IrFunction fn) {
+		this.fn = fn;
+		Map<Value, List<Instr>> users = SlotAccesses.users(fn);
+		Map<Value, Value> replaced = new HashMap<>();
+		for (Instr slot : SlotAccesses.slots(fn)) {
+			SlotAccesses accesses = SlotAccesses.of(slot, users);
+			if (accesses != null && canReplace(accesses)) replace(accesses, replaced);
+		}
+		if (replaced.isEmpty()) return;
+
+		for (BasicBlock block : fn.blocks) {
+			for (Instr instr : block.instrs)
+				instr.args.replaceAll(arg -> resolve(arg, replaced));
+		}
+	}
+
+	private static boolean canReplace(SlotAccesses accesses) {
+		if (accesses.readsSelfPointer()) return false;
+		// the size of the field at each offset, always accessed whole
+		Map<Long, Integer> fields = new HashMap<>();
+		List<Instr> all = new ArrayList<>(accesses.loads);
+		all.addAll(accesses.stores);
+		for (Instr access : all) {
+			Integer size = fields.put(SlotAccesses.offset(access), access.size);
+			if (size != null && size != access.size) return false;
+		}
+		for (Map.Entry<Long, Integer> a : fields.entrySet()) {
+			for (Map.Entry<Long, Integer> b : fields.entrySet()) {
+				if (a != b && SlotAccesses.overlaps(a.getKey(), a.getValue(), b.getKey(), b.getValue())) return false;
+			}
+		}
+		return true;
+	}
+
+	// a load replaced by another load: follow the chain
+	private static Value resolve(Value v, Map<Value, Value> replaced) {
+		while (replaced.containsKey(v))
+			v = replaced.get(v);
+		return v;
+	}
+
+	private void replace(SlotAccesses accesses, Map<Value, Value> replaced) {
+		endValues.clear();
+		startValues.clear();
+		Set<Instr> loads = new HashSet<>(accesses.loads);
+		Set<Instr> stores = new HashSet<>(accesses.stores);
+
+		fieldTypes.clear();
+		for (BasicBlock block : fn.blocks) {
+			for (Instr instr : block.instrs) {
+				if (!stores.contains(instr)) continue;
+				long offset = SlotAccesses.offset(instr);
+				Value value = instr.args.get(1);
+				endValues.computeIfAbsent(block, b -> new HashMap<>()).put(offset, value);
+				if (value.type == IrType.PTR) fieldTypes.put(offset, IrType.PTR);
+			}
+		}
+
+		for (BasicBlock block : new ArrayList<>(fn.blocks)) {
+			Map<Long, Value> current = new HashMap<>();
+			for (Instr instr : new ArrayList<>(block.instrs)) {
+				if (stores.contains(instr)) {
+					current.put(SlotAccesses.offset(instr), instr.args.get(1));
+					block.instrs.remove(instr);
+				} else if (loads.contains(instr)) {
+					long offset = SlotAccesses.offset(instr);
+					Value value = current.containsKey(offset) ? current.get(offset) : valueAtStart(block, offset);
+					replaced.put(instr, value);
+					block.instrs.remove(instr);
+				}
+			}
+		}
+	}
+
+	private Value valueAtEnd(BasicBlock block, long offset) {
+		Map<Long, Value> values = endValues.get(block);
+		if (values != null && values.containsKey(offset)) return values.get(offset);
+		return valueAtStart(block, offset);
+	}
+
+	private Value valueAtStart(BasicBlock block, long offset) {
+		Map<Long, Value> values = startValues.computeIfAbsent(block, b -> new HashMap<>());
+		if (values.containsKey(offset)) return values.get(offset);
+		if (block.preds.isEmpty()) return new Const(0);
+		if (block.preds.size() == 1) {
+			Value value = valueAtEnd(block.preds.get(0), offset);
+			values.put(offset, value);
+			return value;
+		}
+		// recorded before its arguments, that may be itself around a loop
+		Instr phi = fn.insert(block, 0, new Instr(Opcode.PHI, fieldTypes.getOrDefault(offset, IrType.I64)));
+		values.put(offset, phi);
+		for (BasicBlock pred : block.preds)
+			phi.args.add(valueAtEnd(pred, offset));
+		return phi;
+	}
+}
@@ -0,0 +1,108 @@
+package compiler.opt;
+
+import java.util.*;
+
+import compiler.ir.*;
+
+// The field accesses of a local object (a SLOT), when its address does not
+// escape: it only reaches LOADs and STOREs, through constant offsets, and the
+// self pointers of the object and of its inline fields.
+class SlotAccesses {
+	final List<Instr> loads = new ArrayList<>();
+	final List<Instr> stores = new ArrayList<>();
+	final List<Long> selfPointers = new ArrayList<>();
+
+	private final Instr slot;
+	private final Map<Value, List<Instr>> users;
+
+	private SlotAccesses(Instr slot, Map<Value, List<Instr>> users) {
+		this.slot = slot;
+		this.users = users;
+	}
+
+	// the SLOT instructions of 'fn'
+	static List<Instr> slots(IrFunction fn) {
+		List<Instr> slots = new ArrayList<>();
+		for (BasicBlock block : fn.blocks) {
+			for (Instr instr : block.instrs) {
+				if (instr.op == Opcode.SLOT) slots.add(instr);
+			}
+		}
+		return slots;
+	}
+
+	// the instructions using each value
+	static Map<Value, List<Instr>> users(IrFunction fn) {
+		Map<Value, List<Instr>> users = new HashMap<>();
+		for (BasicBlock block : fn.blocks) {
+			for (Instr instr : block.instrs) {
+				for (Value arg : instr.args)
+					users.computeIfAbsent(arg, v -> new ArrayList<>()).add(instr);
+			}
+		}
+		return users;
+	}
+
+	// null when the address of 'slot' escapes
+	static SlotAccesses of(Instr slot, Map<Value, List<Instr>> users) {
+		SlotAccesses accesses = new SlotAccesses(slot, users);
+		return accesses.collect(slot, 0) ? accesses : null;
+	}
+
+	// offset of the field a LOAD or STORE accesses, from the start of its object
+	static long offset(Instr access) {
+		long offset = access.offset;
+		Value base = access.args.get(0);
+		while (base instanceof Instr instr && instr.op == Opcode.ADD && instr.args.get(1) instanceof Const c) {
+			offset += c.value;
+			base = instr.args.get(0);
+		}
+		return offset;
+	}
+
+	// the bytes [a, a + aSize) and [b, b + bSize) overlap
+	static boolean overlaps(long a, int aSize, long b, int bSize) {
+		return a < b + bSize && b < a + aSize;
+	}
+
+	// some LOAD reads the 'size' bytes at 'offset'
+	boolean isRead(long offset, int size) {
+		return loads.stream().anyMatch(load -> overlaps(offset(load), load.size, offset, size));
+	}
+
+	// a loaded self pointer is an address of the slot that cannot be followed
+	boolean readsSelfPointer() {
+		return selfPointers.stream().anyMatch(offset -> isRead(offset, 8));
+	}
+
+	// 'v' is the address slot + 'offset'
+	private boolean collect(Value v, long offset) {
+		for (Instr user : users.getOrDefault(v, List.of())) {
+			switch (user.op) {
+			case ADD -> {
+				if (user.args.get(0) != v || !(user.args.get(1) instanceof Const c)) return false;
+				if (!collect(user, offset + c.value)) return false;
+			}
+			case LOAD -> loads.add(user);
+			case STORE -> {
+				if (user.args.get(1) == v) {
+					// only its self pointer: the address stored at that address
+					if (root(user.args.get(0)) != slot || offset(user) != offset) return false;
+					selfPointers.add(offset);
+				}
+				if (user.args.get(0) == v && !stores.contains(user)) stores.add(user);
+			}
+			default -> {
+				return false;
+			}
+			}
+		}
+		return true;
+	}
+
+	private static Value root(Value base) {
+		while (base instanceof Instr instr && instr.op == Opcode.ADD && instr.args.get(1) instanceof Const)
+			base = instr.args.get(0);
+		return base;
+	}
+}
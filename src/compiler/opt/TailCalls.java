@@ -0,0 +1,173 @@
+package compiler.opt;
+
+import java.util.*;
+
+import compiler.ir.*;
+
+// Calls in tail position, run by CodeGen before LoopOptimizer.
+//
+// A call is in tail position when the function returns its value (or nothing,
+// when the value is unused) right after it: 'return f(x);', or a last
+// statement 'f(x);' of a void method.
+// - A call of the function itself becomes a jump back to the start of the
+//   body: the parameters become PHIs of a new header block after the PARAMs,
+//   the arguments of each call their values for the next iteration. Deep
+//   recursion runs in a constant stack, and the loop is then optimized as such.
+//   The IrFunction.prologue stays in the entry, before the loop.
+// - A call of another method becomes a TAIL: the arguments go to their
+//   registers, the frame is released and the callee is entered with a jmp,
+//   its ret returns straight to our caller.
+// Both release the frame before the callee runs: nothing is done when an
+// address of a stack slot may be passed to the callee, directly or through memory.
+public class TailCalls {
+
+	public void run(IrFunction fn) {
+		if (slotEscapes(fn)) return;
+
+		List<Instr> selfCalls = new ArrayList<>();
+		Map<Value, Integer> uses = fn.useCounts();
+		for (BasicBlock block : new ArrayList<>(fn.blocks)) {
+			Instr call = tailCall(block, uses);
+			if (call == null) continue;
+			leave(fn, block);
+			if (call.callee.equals(fn.name) && call.args.size() == fn.params.size()) {
+				selfCalls.add(call);
+			} else {
+				call.op = Opcode.TAIL;
+				call.type = IrType.VOID;
+			}
+		}
+		if (!selfCalls.isEmpty()) loop(fn, selfCalls);
+	}
+
+	// The CALL in tail position at the end of 'block', null if there is none.
+	// The RET may be in a block of its own, after the join of an if.
+	private static Instr tailCall(BasicBlock block, Map<Value, Integer> uses) {
+		int n = block.instrs.size();
+		if (n < 2 || block.instrs.get(n - 2).op != Opcode.CALL) return null;
+		Instr call = block.instrs.get(n - 2);
+		Instr last = block.instrs.get(n - 1);
+
+		Value result;
+		if (last.op == Opcode.RET) {
+			result = last.args.isEmpty() ? null : last.args.get(0);
+		} else if (last.op == Opcode.JMP) {
+			// [RET] or [PHI, RET of the PHI]
+			BasicBlock exit = last.targets.get(0);
+			Instr ret = exit.terminator();
+			if (ret == null || ret.op != Opcode.RET || exit.instrs.size() > 2) return null;
+			if (exit.instrs.size() == 1) {
+				result = ret.args.isEmpty() ? null : ret.args.get(0);
+			} else {
+				Instr phi = exit.instrs.get(0);
+				if (phi.op != Opcode.PHI || ret.args.isEmpty() || ret.args.get(0) != phi) return null;
+				result = phi.args.get(exit.preds.indexOf(block));
+			}
+		} else {
+			return null;
+		}
+		if (result == null) return uses.containsKey(call) ? null : call;
+		return result == call && uses.get(call) == 1 ? call : null;
+	}
+
+	// removes the terminator after the tail call of 'block', with the edge it may have
+	private static void leave(IrFunction fn, BasicBlock block) {
+		Instr last = block.instrs.remove(block.instrs.size() - 1);
+		if (last.op != Opcode.JMP) return;
+		BasicBlock exit = last.targets.get(0);
+		int index = exit.preds.indexOf(block);
+		exit.preds.remove(index);
+		for (Instr phi : exit.phis())
+			phi.args.remove(index);
+		if (exit.preds.isEmpty()) fn.blocks.remove(exit);
+	}
+
+	private static void loop(IrFunction fn, List<Instr> selfCalls) {
+		BasicBlock entry = fn.entry();
+		BasicBlock header = fn.newBlock();
+		fn.blocks.add(1, header);
+
+		// the entry keeps the PARAMs and the prologue, the rest of the body moves to the header
+		List<Instr> body = new ArrayList<>();
+		for (Instr instr : entry.instrs) {
+			if (instr.op != Opcode.PARAM && !fn.prologue.contains(instr)) body.add(instr);
+		}
+		entry.instrs.removeAll(body);
+		for (Instr instr : body) {
+			instr.block = header;
+			header.instrs.add(instr);
+		}
+		for (BasicBlock succ : header.succs())
+			succ.preds.replaceAll(b -> b == entry ? header : b);
+		Instr enter = new Instr(Opcode.JMP, IrType.VOID);
+		enter.targets.add(header);
+		fn.append(entry, enter);
+
+		List<Instr> phis = new ArrayList<>();
+		for (Instr param : fn.params) {
+			Instr phi = fn.insert(header, phis.size(), new Instr(Opcode.PHI, param.type));
+			fn.replaceAllUses(param, phi);
+			phi.args.add(param);
+			phis.add(phi);
+		}
+
+		// header.preds and the PHI arguments grow together, in the same order
+		for (Instr call : selfCalls) {
+			BasicBlock block = call.block;
+			block.instrs.remove(call);
+			for (int i = 0; i < phis.size(); i++)
+				phis.get(i).args.add(call.args.get(i));
+			Instr jmp = new Instr(Opcode.JMP, IrType.VOID);
+			jmp.targets.add(header);
+			fn.append(block, jmp);
+		}
+	}
+
+	// Whether the address of a stack slot may be seen by a callee: passed to
+	// it, or stored anywhere but in the self pointer of its own object. A value
+	// loaded from a slot counts as an address: it may be a self pointer.
+	private static boolean slotEscapes(IrFunction fn) {
+		if (fn.slots.isEmpty()) return false;
+		for (BasicBlock block : fn.blocks) {
+			for (Instr instr : block.instrs) {
+				if (instr.op == Opcode.CALL) {
+					for (Value arg : instr.args) {
+						if (isSlotAddress(arg, new HashSet<>())) return true;
+					}
+				} else if (instr.op == Opcode.STORE) {
+					Value value = instr.args.get(1);
+					if (isSlotAddress(value, new HashSet<>()) && !isSelfPointer(instr)) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isSlotAddress(Value v, Set<Instr> visited) {
+		if (!(v instanceof Instr instr) || !visited.add(instr)) return false;
+		return switch (instr.op) {
+		case SLOT -> true;
+		case ADD, SUB -> isSlotAddress(instr.args.get(0), visited) || isSlotAddress(instr.args.get(1), visited);
+		case PHI -> instr.args.stream().anyMatch(arg -> isSlotAddress(arg, visited));
+		case LOAD -> isSlotAddress(instr.args.get(0), visited); // may be a self pointer
+		default -> false;
+		};
+	}
+
+	// a STORE of an address at that same address
+	private static boolean isSelfPointer(Instr store) {
+		Value base = store.args.get(0);
+		long offset = store.offset;
+		Value value = store.args.get(1);
+		long valueOffset = 0;
+		while (base instanceof Instr b && b.op == Opcode.ADD && b.args.get(1) instanceof Const c) {
+			offset += c.value;
+			base = b.args.get(0);
+		}
+		while (value instanceof Instr v && v.op == Opcode.ADD && v.args.get(1) instanceof Const c) {
+			valueOffset += c.value;
+			value = v.args.get(0);
+		}
+		return base == value && offset == valueOffset;
+	}
+}
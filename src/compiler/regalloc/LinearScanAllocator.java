@@ -0,0 +1,124 @@
+package compiler.regalloc;
+
+import java.util.*;
+
+import compiler.ir.*;
+
+// Linear scan register allocation (Poletto & Sarkar).
+// Intervals that cross a 'call' can only live in callee-saved registers, the
+// others prefer the caller-saved ones so short-lived values don't cost a
+// save/restore in the prologue. When no register is free, the interval that
+// ends last is spilled (it keeps its %rbp stack slot).
+//
+// With spillPointersAcrossCalls (garbage collected programs), a PTR that
+// crosses a call always stays in its stack slot, where the stack map of the
+// call tells the collector to find it.
+public class LinearScanAllocator {
+
+	// %rax, %rcx and %rdx are scratch registers in CodeGen (idiv, shifts, spilled operands)
+	public static final String[] CALLEE_SAVED = { "%rbx", "%r12", "%r13", "%r14", "%r15" };
+	public static final String[] CALLER_SAVED = { "%r10", "%r11", "%r8", "%r9", "%rsi", "%rdi" };
+
+	private final List<LiveInterval> active = new ArrayList<>();
+	private final Deque<String> freeCallee = new ArrayDeque<>(List.of(CALLEE_SAVED));
+	private final Deque<String> freeCaller = new ArrayDeque<>(List.of(CALLER_SAVED));
+	private final Set<String> usedCalleeSaved = new LinkedHashSet<>();
+
+	public boolean spillPointersAcrossCalls;
+
+	private void expireOldIntervals(LiveInterval current) {
+		Iterator<LiveInterval> iter = active.iterator();
+		while (iter.hasNext()) {
+			LiveInterval it = iter.next();
+			if (it.end >= current.start) continue;
+			iter.remove();
+			release(it.reg);
+		}
+	}
+
+	private static boolean isCalleeSaved(String reg) {
+		return List.of(CALLEE_SAVED).contains(reg);
+	}
+
+	private void release(String reg) {
+		if (isCalleeSaved(reg)) freeCallee.push(reg);
+		else freeCaller.push(reg);
+	}
+
+	private void spillAtInterval(LiveInterval current) {
+		LiveInterval victim = null;
+		for (LiveInterval it : active) {
+			if (current.crossesCall && !isCalleeSaved(it.reg)) continue;
+			if (victim == null || it.end > victim.end) victim = it;
+		}
+
+		if (victim != null && victim.end > current.end) {
+			current.reg = victim.reg;
+			victim.reg = null;
+			active.remove(victim);
+			active.add(current);
+		} else {
+			current.reg = null;
+		}
+	}
+
+	private String takeRegister(LiveInterval current) {
+		if (!current.crossesCall && !freeCaller.isEmpty()) return freeCaller.pop();
+		if (!freeCallee.isEmpty()) return freeCallee.pop();
+		return null;
+	}
+
+	// sets LiveInterval.reg for every interval (null = spilled)
+	public void allocate(List<LiveInterval> intervals) {
+		for (LiveInterval current : intervals) {
+			expireOldIntervals(current);
+			if (spillPointersAcrossCalls && current.crossesCall && current.value.type == IrType.PTR) {
+				current.reg = null;
+				continue;
+			}
+
+			String reg = takeRegister(current);
+			if (reg != null) {
+				current.reg = reg;
+				active.add(current);
+			} else {
+				spillAtInterval(current);
+			}
+
+			if (current.reg != null && isCalleeSaved(current.reg)) usedCalleeSaved.add(current.reg);
+		}
+	}
+
+	// Gives each spilled interval an 8-byte slot index; intervals that don't
+	// overlap share the same slot. Returns the number of slots.
+	public int assignSpillSlots(List<LiveInterval> intervals) {
+		List<LiveInterval> spilled = new ArrayList<>();
+		Deque<Integer> freeSlots = new ArrayDeque<>();
+		int slots = 0;
+
+		for (LiveInterval current : intervals) {
+			if (current.reg != null) continue;
+
+			Iterator<LiveInterval> iter = spilled.iterator();
+			while (iter.hasNext()) {
+				LiveInterval it = iter.next();
+				if (it.end >= current.start) continue;
+				iter.remove();
+				freeSlots.push(it.spillSlot);
+			}
+
+			current.spillSlot = freeSlots.isEmpty() ? slots++ : freeSlots.pop();
+			spilled.add(current);
+		}
+		return slots;
+	}
+
+	// callee-saved registers the function must save in its prologue
+	public List<String> getUsedCalleeSaved() {
+		List<String> regs = new ArrayList<>();
+		for (String reg : CALLEE_SAVED) {
+			if (usedCalleeSaved.contains(reg)) regs.add(reg);
+		}
+		return regs;
+	}
+}
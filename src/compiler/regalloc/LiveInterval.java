@@ -0,0 +1,37 @@
+package compiler.regalloc;
+
+import compiler.ir.*;
+
+// Range of positions [start, end] where a virtual register holds a value that
+// can still be read. Positions come from LivenessAnalyzer and follow the order
+// in which CodeGen emits the blocks.
+public class LiveInterval {
+	public Instr value;
+	public int start;
+	public int end;
+
+	// true when the value must survive a 'call' (only callee-saved registers)
+	public boolean crossesCall;
+
+	// assigned register (ex: "%rbx"), null means spilled to a stack slot
+	public String reg;
+
+	// index of the 8-byte spill slot when reg == null
+	public int spillSlot = -1;
+
+	public LiveInterval(Instr value, int pos) {
+		this.value = value;
+		this.start = pos;
+		this.end = pos;
+	}
+
+	public void extend(int pos) {
+		if (pos < start) start = pos;
+		if (pos > end) end = pos;
+	}
+
+	@Override
+	public String toString() {
+		return "LiveInterval (value=" + value + ", [" + start + ", " + end + "], reg=" + reg + ")";
+	}
+}
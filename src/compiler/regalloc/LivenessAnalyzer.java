@@ -0,0 +1,137 @@
+package compiler.regalloc;
+
+import java.util.*;
+
+import compiler.ir.*;
+
+// Computes one live interval per virtual register of an IrFunction.
+//
+// Instructions are numbered in block layout order. Live-in/live-out sets come
+// from the usual backward dataflow over the CFG (a PHI operand is live at the
+// end of its predecessor, a PHI result is written at the end of every
+// predecessor by CodeGen's moves), and each interval is the hull of every
+// position where the value is live: no lifetime holes, as in Poletto & Sarkar.
+public class LivenessAnalyzer {
+
+	private final Map<Instr, LiveInterval> intervals = new LinkedHashMap<>();
+	private final Map<BasicBlock, Set<Instr>> liveIn = new HashMap<>();
+	private final Map<BasicBlock, Set<Instr>> liveOut = new HashMap<>();
+	private final Map<BasicBlock, Integer> blockStart = new HashMap<>();
+	private final Map<BasicBlock, Integer> blockEnd = new HashMap<>();
+	private final Map<Instr, Integer> positions = new HashMap<>();
+	private final List<Integer> calls = new ArrayList<>();
+
+	private void computeLiveSets(IrFunction fn) {
+		for (BasicBlock block : fn.blocks) {
+			liveIn.put(block, new HashSet<>());
+			liveOut.put(block, new HashSet<>());
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = fn.blocks.size() - 1; i >= 0; i--) {
+				BasicBlock block = fn.blocks.get(i);
+
+				Set<Instr> out = new HashSet<>();
+				for (BasicBlock succ : block.succs()) {
+					for (Instr v : liveIn.get(succ)) {
+						if (v.op != Opcode.PHI || v.block != succ) out.add(v);
+					}
+					int predIndex = succ.preds.indexOf(block);
+					for (Instr phi : succ.phis()) {
+						if (isTracked(phi.args.get(predIndex))) out.add((Instr) phi.args.get(predIndex));
+					}
+				}
+
+				Set<Instr> in = new HashSet<>(out);
+				for (int j = block.instrs.size() - 1; j >= 0; j--) {
+					Instr instr = block.instrs.get(j);
+					in.remove(instr);
+					if (instr.op == Opcode.PHI) continue;
+					for (Value arg : instr.args) {
+						if (isTracked(arg)) in.add((Instr) arg);
+					}
+				}
+
+				if (!out.equals(liveOut.get(block)) || !in.equals(liveIn.get(block))) {
+					liveOut.put(block, out);
+					liveIn.put(block, in);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// position of an instruction (after analyze)
+	public int position(Instr instr) {
+		return positions.get(instr);
+	}
+
+	private void extend(Instr value, int pos) {
+		LiveInterval it = intervals.get(value);
+		if (it == null) intervals.put(value, new LiveInterval(value, pos));
+		else it.extend(pos);
+	}
+
+	// SLOT addresses are recomputed with 'lea' where needed, they never take a register
+	private static boolean isTracked(Value v) {
+		return v instanceof Instr instr && instr.hasResult() && instr.op != Opcode.SLOT;
+	}
+
+	private void numberInstructions(IrFunction fn) {
+		int pos = 0;
+		for (BasicBlock block : fn.blocks) {
+			blockStart.put(block, pos++);
+			for (Instr instr : block.instrs) {
+				if (instr.op == Opcode.PHI) {
+					positions.put(instr, blockStart.get(block));
+					continue;
+				}
+				positions.put(instr, pos);
+				if (instr.op == Opcode.CALL) calls.add(pos);
+				pos++;
+			}
+			blockEnd.put(block, pos++);
+		}
+	}
+
+	public List<LiveInterval> analyze(IrFunction fn) {
+		numberInstructions(fn);
+		computeLiveSets(fn);
+
+		Map<Value, Integer> uses = fn.useCounts();
+		for (BasicBlock block : fn.blocks) {
+			for (Instr instr : block.instrs) {
+				if (isTracked(instr) && uses.containsKey(instr)) {
+					extend(instr, positions.get(instr));
+					if (instr.op == Opcode.PHI) {
+						for (BasicBlock pred : block.preds)
+							extend(instr, blockEnd.get(pred));
+					}
+				}
+				if (instr.op == Opcode.PHI) continue;
+				for (Value arg : instr.args) {
+					if (isTracked(arg)) extend((Instr) arg, positions.get(instr));
+				}
+			}
+			for (Instr v : liveIn.get(block))
+				extend(v, blockStart.get(block));
+			for (Instr v : liveOut.get(block))
+				extend(v, blockEnd.get(block));
+		}
+
+		for (LiveInterval it : intervals.values()) {
+			for (int call : calls) {
+				if (it.start < call && call < it.end) {
+					it.crossesCall = true;
+					break;
+				}
+			}
+		}
+
+		List<LiveInterval> result = new ArrayList<>(intervals.values());
+		result.sort(Comparator.comparingInt(it -> it.start));
+		return result;
+	}
+}
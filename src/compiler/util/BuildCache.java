@@ -0,0 +1,114 @@
+package compiler.util;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+import compiler.ast.core.*;
+import compiler.ast.stmt.*;
+import compiler.ast.var_def.*;
+
+// Content-addressed store of compiled units: <dir>/<key>.o (and <key>.s when
+// the assembly text is kept).
+// The key is a SHA-256 of everything the generated code depends on: the
+// compiler itself, the unit's source and the signatures of the classes it uses
+// (see signature()). A unit whose key is already in the cache is not compiled
+// again. Entries are written to a temp file and moved, so concurrent builds
+// never see half-written files.
+public class BuildCache {
+	private static String compilerFingerprint;
+
+	private final Path dir;
+
+	public BuildCache(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+	}
+
+	public Path asm(String key) {
+		return dir.resolve(key + ".s");
+	}
+
+	public Path obj(String key) {
+		return dir.resolve(key + ".o");
+	}
+
+	public boolean hasObj(String key) {
+		return Files.exists(obj(key));
+	}
+
+	public void store(Path file, Path entry) throws IOException {
+		store(Files.readAllBytes(file), entry);
+	}
+
+	public void store(byte[] content, Path entry) throws IOException {
+		Path tmp = Files.createTempFile(dir, "tmp", null);
+		Files.write(tmp, content);
+		Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// hex SHA-256 of the compiler fingerprint and 'parts'
+	public static String key(List<String> parts) {
+		MessageDigest sha = sha256();
+		sha.update(compilerFingerprint().getBytes(StandardCharsets.US_ASCII));
+		for (String part : parts) {
+			sha.update((byte) 0);
+			sha.update(part.getBytes(StandardCharsets.UTF_8));
+		}
+		return HexFormat.of().formatHex(sha.digest());
+	}
+
+	// What a unit using 'clazz' compiles against: the layout (size, field
+	// offsets, inline or reference) and the methods it can call.
+	public static String signature(ClassDefNode clazz) {
+		ClassLayout layout = ClassLayout.of(clazz);
+		StringBuilder sb = new StringBuilder();
+		sb.append("class ").append(clazz.name).append(' ').append(layout.size).append('\n');
+		for (int i = 0; i < layout.fields.length; i++) {
+			VarDeclNode field = layout.fields[i];
+			sb.append(field.type).append(' ').append(field.name).append(' ').append(layout.offsets[i]);
+			sb.append(layout.inline[i] ? " inline\n" : "\n");
+		}
+		for (FuncDefNode method : clazz.methods.values()) {
+			sb.append(method.returnType).append(' ').append(method.name).append('(');
+			for (VarDeclNode param : method.params.values())
+				sb.append(param.type).append(',');
+			sb.append(")\n");
+		}
+		return sb.toString();
+	}
+
+	// The classes the compiler was loaded from (a jar or a directory of
+	// .class files): a new compiler never reuses the output of an old one.
+	private static synchronized String compilerFingerprint() {
+		if (compilerFingerprint != null) return compilerFingerprint;
+		MessageDigest sha = sha256();
+		try {
+			Path location = Paths.get(BuildCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (Files.isDirectory(location)) {
+				try (var paths = Files.walk(location)) {
+					for (Path p : paths.filter(p -> p.toString().endsWith(".class")).sorted().toList()) {
+						sha.update(location.relativize(p).toString().getBytes(StandardCharsets.UTF_8));
+						sha.update(Files.readAllBytes(p));
+					}
+				}
+			} else {
+				sha.update(Files.readAllBytes(location));
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("Cannot fingerprint the compiler classes", e);
+		}
+		compilerFingerprint = HexFormat.of().formatHex(sha.digest());
+		return compilerFingerprint;
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
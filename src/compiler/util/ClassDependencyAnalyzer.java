@@ -51,6 +51,18 @@ public class ClassDependencyAnalyzer {
 		graph.computeIfAbsent(fromClass, k -> new HashSet<>()).add(field.typeClass.name);
 	}
 
+	// classes whose layout 'className' depends on (inline fields, recursively)
+	public Set<String> dependenciesOf(String className) {
+		Set<String> deps = new TreeSet<>();
+		Deque<String> work = new ArrayDeque<>(List.of(className));
+		while (!work.isEmpty()) {
+			for (String neighbor : graph.getOrDefault(work.pop(), Collections.emptySet())) {
+				if (deps.add(neighbor)) work.push(neighbor);
+			}
+		}
+		return deps;
+	}
+
 	public void checkForCycles() {
 		for (String className : graph.keySet()) {
 			visited.clear();
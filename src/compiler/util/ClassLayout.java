@@ -0,0 +1,124 @@
+package compiler.util;
+
+import java.util.*;
+
+import compiler.ast.core.*;
+import compiler.ast.var_def.*;
+
+// Memory layout of a class, computed once after the parser resolved the field
+// types (ClassDefNode.layout). Field i is fields[i], at byte offsets[i] from the
+// start of the object; inline[i] tells if it is an inline object (its bytes are
+// part of this one) rather than a PrimitiveType or a '= null' reference.
+//
+// The compact layout (the default) has no header: the address of an inline
+// object is computed from its container's, never loaded. Each field is
+// aligned on its size (an inline object on its largest field), and fields
+// are placed by decreasing alignment, so no padding is needed between them:
+// { i8 a; int b; i16 c; } is b at 0, c at 8, a at 10, 16 bytes.
+//
+// The mode is chosen per compilation (Parser.layoutClasses), the layouts of
+// the classes a class inlines are computed in the same mode.
+//
+// The header layout (-layout=header) is the original one: every object and
+// inline object starts with its fat pointer (8 bytes), that IrBuilder stores
+// and loads, then the fields in declaration order.
+//
+// 'pointers' is the pointer map of the class for the garbage collector: the
+// byte offset of every reference field, those of its inline objects included.
+// References are 8-byte aligned in both layouts.
+public class ClassLayout {
+	public static final int POINTER_SIZE = 8;
+
+	public final ClassDefNode clazz;
+	public final int size;
+	public final int align;
+	// bytes before the first field: the fat pointer, or nothing
+	public final int header;
+	public final VarDeclNode[] fields;
+	public final int[] offsets;
+	public final int[] sizes;
+	public final boolean[] inline;
+	// offsets of the references, in increasing order
+	public final int[] pointers;
+	private final Map<String, Integer> index = new HashMap<>();
+
+	private ClassLayout(ClassDefNode clazz, boolean compact) {
+		this.clazz = clazz;
+		int n = clazz.fields.size();
+		fields = clazz.fields.values().toArray(new VarDeclNode[n]);
+		offsets = new int[n];
+		sizes = new int[n];
+		inline = new boolean[n];
+		header = compact ? 0 : POINTER_SIZE;
+
+		int[] aligns = new int[n];
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			VarDeclNode field = fields[i];
+			inline[i] = field.typeClass != null;
+			if (inline[i]) of(field.typeClass, compact);
+			sizes[i] = fieldSize(field);
+			aligns[i] = inline[i] ? of(field.typeClass).align : sizes[i];
+			index.put(field.name, i);
+			order.add(i);
+		}
+		if (compact) order.sort(Comparator.comparingInt(i -> -aligns[i])); // stable
+
+		int offset = header;
+		int maxAlign = compact ? 1 : POINTER_SIZE;
+		for (int i : order) {
+			offset = alignUp(offset, aligns[i]);
+			offsets[i] = offset;
+			offset += sizes[i];
+			maxAlign = Math.max(maxAlign, aligns[i]);
+		}
+		this.size = alignUp(offset, maxAlign);
+		this.align = maxAlign;
+
+		List<Integer> refs = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			if (inline[i]) {
+				for (int p : of(fields[i].typeClass).pointers)
+					refs.add(offsets[i] + p);
+			} else if (fields[i].refClass != null) {
+				refs.add(offsets[i]);
+			}
+		}
+		pointers = refs.stream().sorted().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static int alignUp(int offset, int align) {
+		return (offset + align - 1) / align * align;
+	}
+
+	// bytes of a field: the size of its PrimitiveType or of its inline object, 8 for a reference
+	public static int fieldSize(VarDeclNode field) {
+		if (field.typeClass != null) return of(field.typeClass).size;
+		PrimitiveType type = PrimitiveType.of(field.type);
+		return type != null ? type.size : POINTER_SIZE;
+	}
+
+	public int indexOf(String fieldName) {
+		Integer i = index.get(fieldName);
+		if (i == null) throw new RuntimeException("Field not found: " + fieldName + " in class " + clazz.name);
+		return i;
+	}
+
+	// layout of 'clazz', computing it (and the layouts it depends on) the first time.
+	// Cycles of inline objects are rejected before by ClassDependencyAnalyzer.
+	public static ClassLayout of(ClassDefNode clazz, boolean compact) {
+		if (clazz.layout == null) clazz.layout = new ClassLayout(clazz, compact);
+		return clazz.layout;
+	}
+
+	// layout of 'clazz', computed by Parser.layoutClasses
+	public static ClassLayout of(ClassDefNode clazz) {
+		if (clazz.layout == null) throw new RuntimeException("No layout computed for class " + clazz.name);
+		return clazz.layout;
+	}
+
+	@Override
+	public String toString() {
+		return "ClassLayout (class=" + clazz.name + ", size=" + size + ", offsets=" + Arrays.toString(offsets) + ")";
+	}
+}
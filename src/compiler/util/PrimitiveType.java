@@ -0,0 +1,41 @@
+package compiler.util;
+
+// The built-in value types. In a register every value has 64 bits, a narrower
+// type only tells how many bytes it takes in an object (ClassLayout) and how
+// a value is brought back to its range when a variable, field, parameter or
+// return value of that type is written: sign extension of its low bytes for
+// i8, i16 and i32, zero extension for char, 0 or 1 for bool.
+public enum PrimitiveType {
+	I8("i8", 1, true), I16("i16", 2, true), I32("i32", 4, true), I64("i64", 8, true), INT("int", 8, true),
+	BOOL("bool", 1, false), CHAR("char", 1, false);
+
+	public final String name;
+	public final int size;
+	public final boolean signed;
+
+	PrimitiveType(String name, int size, boolean signed) {
+		this.name = name;
+		this.size = size;
+		this.signed = signed;
+	}
+
+	// null for void and the classes
+	public static PrimitiveType of(String type) {
+		for (PrimitiveType t : values()) {
+			if (t.name.equals(type)) return t;
+		}
+		return null;
+	}
+
+	// 'value' brought to the range of the type
+	public long convert(long value) {
+		return switch (this) {
+		case I8 -> (byte) value;
+		case I16 -> (short) value;
+		case I32 -> (int) value;
+		case BOOL -> value != 0 ? 1 : 0;
+		case CHAR -> value & 0xFF;
+		default -> value;
+		};
+	}
+}
@@ -0,0 +1,51 @@
+package compiler.util;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// The C runtime linked into every program: the files of runtime/ (found from
+// the current directory, like the sources), compiled once with 'gcc -c' and
+// kept in the BuildCache under the hash of their source.
+public class RuntimeLibrary {
+	public static final Path DIR = Paths.get("runtime");
+	private static final Path CACHE = Paths.get("build", "cache");
+
+	// the objects of the runtime, compiled if needed; none without a runtime/ directory
+	public static synchronized List<Path> objects() throws IOException, InterruptedException {
+		List<Path> objs = new ArrayList<>();
+		if (!Files.isDirectory(DIR)) return objs;
+		BuildCache cache = new BuildCache(CACHE);
+		List<Path> sources;
+		try (var paths = Files.list(DIR)) {
+			sources = paths.filter(p -> p.toString().endsWith(".c")).sorted().toList();
+		}
+		for (Path source : sources) {
+			Path obj = cache.obj(BuildCache.key(List.of("runtime", source.getFileName().toString(), Files.readString(source))));
+			if (!Files.exists(obj)) {
+				Path tmp = Files.createTempFile("kite-runtime", ".o");
+				try {
+					Process gcc = new ProcessBuilder("gcc", "-O2", "-c", "-o", tmp.toString(), source.toString())
+							.redirectErrorStream(true).start();
+					String output = new String(gcc.getInputStream().readAllBytes());
+					if (gcc.waitFor() != 0) throw new RuntimeException("gcc failed on " + source + ": " + output.trim());
+					cache.store(tmp, obj);
+				} finally {
+					Files.deleteIfExists(tmp);
+				}
+			}
+			objs.add(obj);
+		}
+		return objs;
+	}
+
+	// gcc -no-pie -g -o <execFile> a.o b.o ... and the runtime
+	public static List<String> linkCommand(List<Path> objs, String execFile) throws IOException, InterruptedException {
+		List<String> cmd = new ArrayList<>(List.of("gcc", "-no-pie", "-g", "-o", execFile));
+		for (Path p : objs)
+			cmd.add(p.toString());
+		for (Path p : objects())
+			cmd.add(p.toString());
+		return cmd;
+	}
+}
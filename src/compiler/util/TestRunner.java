@@ -3,15 +3,37 @@ package compiler.util;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-// Read Kite test files from the "tests" directory, compile them using the Kite compiler.
-// Then call 'gcc' to mount/compile the assembler code.
+import compiler.*;
+import compiler.asm.*;
+import compiler.ast.core.*;
+
+// Read Kite test files from the "tests" directory and compile them in-process
+// with the Kite compiler, several tests at a time, each one in its own temp
+// directory. Then call 'gcc' to mount/compile the assembler code and run it.
+// A directory (ex: test18_exit47/) is a multi-file project, compiled by ProjectCompiler.
+//
+// Usage: java -cp bin compiler.util.TestRunner [-j threads]
 public class TestRunner {
+	private static final long TIMEOUT_SECONDS = 10;
+
+	private static final String[] PHASES = { "lex", "parse", "codegen", "assemble", "link", "run" };
+	private static final int LEX = 0, PARSE = 1, CODEGEN = 2, ASSEMBLE = 3, LINK = 4, RUN = 5;
+
+	private static class Result {
+		int exit = -1;
+		String error;
+		// nanoseconds per phase, -1 if the phase is not measured on its own
+		final long[] times = { -1, -1, -1, -1, -1, -1 };
+	}
+
 	// Ex: test3_exit6.kite → returns 6
 	private static int extractExpectedExitCode(String name) {
 		try {
 			int start = name.indexOf("exit") + 4;
 			int end = name.lastIndexOf('.');
+			if (end < start) end = name.length(); // directory
 			return Integer.parseInt(name.substring(start, end));
 		} catch (Exception e) {
 			return 0;
@@ -31,9 +53,86 @@ public class TestRunner {
 		return Integer.MAX_VALUE;
 	}
 
+	private static Result runTest(File file) {
+		Result result = new Result();
+		Path dir = null;
+		try {
+			dir = Files.createTempDirectory("kite-test");
+			Path exec = dir.resolve("out");
+
+			if (file.isDirectory()) {
+				long t0 = System.nanoTime();
+				List<Path> objs = new ProjectCompiler(file.toPath(), dir).compile();
+				long t1 = System.nanoTime();
+				ProjectCompiler.link(objs, exec.toString());
+				result.times[CODEGEN] = t1 - t0; // includes lex, parse and the assembler
+				result.times[LINK] = System.nanoTime() - t1;
+			} else {
+				String code = Files.readString(file.toPath());
+				Path obj = dir.resolve("out.o");
+
+				long t0 = System.nanoTime();
+				Lexer lexer = Pipeline.lex(code);
+				long t1 = System.nanoTime();
+				ProgramNode ast = Pipeline.parse(lexer);
+				long t2 = System.nanoTime();
+				List<InstrBuffer> functions = Pipeline.generate(ast);
+				long t3 = System.nanoTime();
+				Files.write(obj, Pipeline.assemble(functions));
+				long t4 = System.nanoTime();
+				result.times[LEX] = t1 - t0;
+				result.times[PARSE] = t2 - t1;
+				result.times[CODEGEN] = t3 - t2;
+				result.times[ASSEMBLE] = t4 - t3;
+
+				Process gcc = new ProcessBuilder(RuntimeLibrary.linkCommand(List.of(obj), exec.toString()))
+						.redirectErrorStream(true).start();
+				String gccOutput = new String(gcc.getInputStream().readAllBytes());
+				if (gcc.waitFor() != 0) throw new RuntimeException("gcc failed: " + gccOutput.trim());
+				result.times[LINK] = System.nanoTime() - t4;
+			}
+
+			long t5 = System.nanoTime();
+			Process run = new ProcessBuilder(exec.toString()).directory(dir.toFile())
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectErrorStream(true).start();
+			if (!run.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				run.destroyForcibly();
+				throw new RuntimeException("timeout after " + TIMEOUT_SECONDS + "s");
+			}
+			result.times[RUN] = System.nanoTime() - t5;
+			result.exit = run.exitValue();
+
+		} catch (Exception e) {
+			result.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+		} finally {
+			if (dir != null) delete(dir);
+		}
+		return result;
+	}
+
+	private static void delete(Path dir) {
+		try (var paths = Files.walk(dir)) {
+			for (Path p : paths.sorted(Comparator.reverseOrder()).toList())
+				Files.deleteIfExists(p);
+		} catch (IOException e) {
+		}
+	}
+
+	private static String formatTimes(long[] times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < PHASES.length; i++) {
+			if (times[i] < 0) continue;
+			sb.append(String.format(" %s %.1fms", PHASES[i], times[i] / 1e6));
+		}
+		return sb.toString();
+	}
+
 	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (args.length > 1 && args[0].equals("-j")) threads = Integer.parseInt(args[1]);
+
 		File testDir = new File("tests");
-		File[] testFiles = testDir.listFiles((dir, name) -> name.endsWith(".kite"));
+		File[] testFiles = testDir.listFiles((dir, name) -> name.endsWith(".kite") || new File(dir, name).isDirectory());
 
 		if (testFiles == null) {
 			System.err.println("No test files found.");
@@ -42,31 +141,36 @@ public class TestRunner {
 
 		Arrays.sort(testFiles, Comparator.comparingInt(f -> extractTestNumber(f.getName())));
 
-		for (File file : testFiles) {
-			String code = new String(Files.readAllBytes(file.toPath()));
-			String name = file.getName();
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> results = new ArrayList<>();
+		for (File file : testFiles)
+			results.add(pool.submit(() -> runTest(file)));
+
+		int passed = 0;
+		long[] total = new long[PHASES.length];
+		for (int i = 0; i < testFiles.length; i++) {
+			String name = testFiles[i].getName();
 			int expected = extractExpectedExitCode(name);
+			Result result = results.get(i).get();
 
 			System.out.printf("Running %s... ", name);
-
-			Process compile = new ProcessBuilder("java", "-cp", "bin", "compiler.Main", code)
-					.redirectOutput(new File("out.s")).redirectError(ProcessBuilder.Redirect.INHERIT).start();
-			compile.waitFor();
-
-			Process gcc = new ProcessBuilder("gcc", "-o", "out", "out.s").redirectError(ProcessBuilder.Redirect.INHERIT)
-					.start();
-			gcc.waitFor();
-
-			Process run = new ProcessBuilder("./out").start();
-			run.waitFor();
-			int exit = run.exitValue();
-
-			if (exit == expected) {
-				System.out.println("✅ Pass (exit code " + exit + ")");
+			if (result.error != null) {
+				System.out.println("❌ Error (" + result.error + ")");
+			} else if (result.exit == expected) {
+				passed++;
+				System.out.println("✅ Pass (exit code " + result.exit + ")" + formatTimes(result.times));
 			} else {
-				System.out.println("❌ Error (expected " + expected + ", exit " + exit + ")");
+				System.out.println("❌ Error (expected " + expected + ", exit " + result.exit + ")");
 			}
+			for (int p = 0; p < PHASES.length; p++)
+				total[p] += Math.max(0, result.times[p]);
 		}
+		pool.shutdown();
+
+		System.out.printf("%d/%d passed in %.0fms on %d threads, total:%s%n", passed, testFiles.length,
+				(System.nanoTime() - start) / 1e6, threads, formatTimes(total));
+		if (passed != testFiles.length) System.exit(1);
 	}
 
 }
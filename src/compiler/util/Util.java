@@ -6,15 +6,17 @@ import java.nio.file.*;
 import compiler.*;
 import compiler.ast.core.*;
 import compiler.ast.expr.*;
+import compiler.ast.stmt.*;
 import compiler.ast.var_def.*;
 
 public class Util {
 
+	// 'start' is the token where the parser stopped
 	public static void debugPrintTokens(Token start, int context, Exception e) {
 		System.err.println("========= Error: =========");
 
 		// if parser error
-		if (!Parser.current.kind.equals(Token.Kind.EOF)) {
+		if (!start.kind.equals(Token.Kind.EOF)) {
 			System.err.println("line: " + start.pos);
 			System.err.println("-------------------------");
 			// Walk some tokens back to find the context
@@ -25,7 +27,7 @@ public class Util {
 
 			// Walk some tokens front to find the context
 			for (int i = 0; i < context * 2 && t != null; i++) {
-				String marker = (t == Parser.current) ? "  <-- current" : "";
+				String marker = (t == start) ? "  <-- current" : "";
 				System.err.printf("[%s] \"%s\"%s\n", t.kind, t.text, marker);
 				t = t.next;
 			}
@@ -37,25 +39,35 @@ public class Util {
 	}
 
 	public static int getClassSize(ClassDefNode clazz) {
-		int size = 8; // pointer size
-		for (VarDeclNode field : clazz.fields.values()) {
-			size += getFieldSize(field);
-		}
-		return size;
+		return ClassLayout.of(clazz).size;
 	}
 
 	public static int getFieldOffset(FieldAccessNode fa) {
-		ClassDefNode clazz = resolveClassOfFieldAccess(fa.target);
-		int fieldOffset = resolveFieldOffset(clazz, fa.field);
-		return fieldOffset;
+		resolveFieldAccess(fa);
+		return fa.offset;
 	}
 
 	public static int getFieldSize(VarDeclNode field) {
-		if (field.typeClass != null) {
-			return getClassSize(field.typeClass);
-		} else {
-			return 8;
-		}
+		return ClassLayout.fieldSize(field);
+	}
+
+	// true if evaluating 'node' may execute a 'call'
+	public static boolean hasCall(Node node) {
+		if (node instanceof FuncCallNode || node instanceof NewNode) return true;
+		if (node instanceof AssignNode assign) return hasCall(assign.value) || hasCall(assign.target);
+		if (node instanceof BinOpNode bin) return hasCall(bin.left) || hasCall(bin.right);
+		if (node instanceof UnaryOpNode uop) return hasCall(uop.expr);
+		if (node instanceof FieldAccessNode fa) return hasCall(fa.target);
+		return false;
+	}
+
+	// true if evaluating 'node' may change state (call or assignment)
+	public static boolean hasSideEffects(Node node) {
+		if (node instanceof FuncCallNode || node instanceof AssignNode || node instanceof NewNode) return true;
+		if (node instanceof BinOpNode bin) return hasSideEffects(bin.left) || hasSideEffects(bin.right);
+		if (node instanceof UnaryOpNode uop) return hasSideEffects(uop.expr);
+		if (node instanceof FieldAccessNode fa) return hasSideEffects(fa.target);
+		return false;
 	}
 
 	public static String loadKiteFile(String fileName) throws IOException {
@@ -79,26 +91,35 @@ public class Util {
 	public static ClassDefNode resolveClassOfFieldAccess(Node target) {
 		if (target instanceof IdentNode idTarget) {
 			VarDeclNode varDecl = idTarget.varDecl;
-			return varDecl.typeClass;
+			return varDecl.typeClass != null ? varDecl.typeClass : varDecl.refClass;
 
 		} else if (target instanceof VarDeclNode faTarget) {
-			return faTarget.typeClass;
+			return faTarget.typeClass != null ? faTarget.typeClass : faTarget.refClass;
 
 		} else if (target instanceof FieldAccessNode faTarget) {
-			ClassDefNode outerClass = resolveClassOfFieldAccess(faTarget.target);
-			VarDeclNode fieldDecl = outerClass.fields.get(faTarget.field);
-			return fieldDecl.typeClass;
+			resolveFieldAccess(faTarget);
+			return faTarget.typeClass != null ? faTarget.typeClass : faTarget.refClass;
 		}
 		throw new RuntimeException("Unsupported FieldAccessNode target: " + target);
 	}
 
+	// fills fa.offset, fa.typeClass and fa.refClass the first time, each level of a.b.c is resolved only once
+	private static void resolveFieldAccess(FieldAccessNode fa) {
+		if (fa.offset >= 0) return;
+		ClassDefNode owner = resolveClassOfFieldAccess(fa.target);
+		if (owner == null) throw new RuntimeException("Not an object: " + fa.target + " (field " + fa.field + ")");
+
+		ClassLayout layout = ClassLayout.of(owner);
+		int i = layout.indexOf(fa.field);
+		fa.offset = layout.offsets[i];
+		fa.decl = layout.fields[i];
+		fa.typeClass = layout.inline[i] ? layout.fields[i].typeClass : null;
+		fa.refClass = layout.fields[i].refClass;
+	}
+
 	public static int resolveFieldOffset(ClassDefNode classNode, String fieldName) {
-		int offset = 8; // starts with the pointer size
-		for (VarDeclNode field : classNode.fields.values()) {
-			if (field.name.equals(fieldName)) return offset;
-			offset += getFieldSize(field);
-		}
-		throw new RuntimeException("Field not found: " + fieldName + " in class " + classNode.name);
+		ClassLayout layout = ClassLayout.of(classNode);
+		return layout.offsets[layout.indexOf(fieldName)];
 	}
 
 }
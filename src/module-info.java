@@ -5,4 +5,5 @@
  * 
  */
 module kite {
+	requires jdk.management; // allocation counters of compiler.bench
 }
\ No newline at end of file